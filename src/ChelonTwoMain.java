@@ -12,10 +12,53 @@
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 import javax.imageio.ImageIO;
 import javax.sound.sampled.*;
 import javax.swing.*;
@@ -33,8 +76,10 @@ public class ChelonTwoMain {
     public static void main(String[] args) {
 
         SpriteGenerator.loadSprites();
+        MonsterCatalog.loadCatalog();
 
         GameModel gameModel = new GameModel();
+        SoundSystem.listenTo(gameModel.getEventBus());
         GameView gameView = new GameView(gameModel);
         GameController gameController = new GameController(gameView, gameModel);
         gameView.getGameWindow().setVisible(true);
@@ -47,24 +92,64 @@ public class ChelonTwoMain {
  * the current state of the game.
  * Initializes the level creator and holds an instance to
  * the game board.
+ * Closing the model releases the file its paged-out levels are kept in.
  */
-class GameModel {
+class GameModel implements Closeable {
 
     // maxLevel is number of levels generated until game is won.
     public static final int maxLevel = 6;
+    // Monster count above which intents are decided in parallel.
+    private static final int parallelIntentThreshold = 256;
+    // How far the player can see, in tiles.
+    public static final int sightRadius = 8;
     private boolean playerHasAttacked;
     private GameBoard gameBoard;
     private int currentLevel;
+    private int turnsTaken;
     private Player player;
+    private FieldOfView fieldOfView;
+    private GameEventBus eventBus;
+    private TurnScheduler monsterScheduler;
+    // Levels that have been left are written to the dungeon store.
+    // Only the current level and its neighbors stay on the heap.
+    private DungeonStore dungeonStore;
+    private Map<Integer, GameBoard> residentLevels = new HashMap<>();
+    // Recent steps of play, so they can be rewound and replayed.
+    // Nothing is recorded while a rewind or replay is being applied.
+    private RewindBuffer history = new RewindBuffer(RewindBuffer.defaultMemoryBytes);
+    private boolean replaying;
+    // Schedulers of the levels as they were left, so undoing a level
+    // change gives their monsters back their energy. Only kept while
+    // recording, for levels the history can still go back to.
+    // Schedulers of levels paged out are detached from their boards.
+    private Map<Integer, TurnScheduler> levelSchedulers = new HashMap<>();
+    // Monsters killed most recently, newest last, so undoing a kill
+    // puts back the same monster with its place in the scheduler.
+    private ArrayDeque<GameCharacter> fallen = new ArrayDeque<>();
+    private static final int maxFallen = 1024;
 
     /**
      * Default constructor
      */
     public GameModel() {
+        this(new GameBoard(LevelCreator.generateLevel(1)), new Player());
+    }
+
+    /**
+     * Constructor that starts the game on a prepared board,
+     * used by the headless stress test.
+     * @param gameBoard board for the first level.
+     * @param player player placed on the board.
+     */
+    public GameModel(GameBoard gameBoard, Player player) {
+        eventBus = new GameEventBus(GameEventBus.defaultCapacity);
         playerHasAttacked = false;
         currentLevel = 1;
-        gameBoard = new GameBoard(LevelCreator.generateLevel(currentLevel));
-        player = new Player();
+        this.gameBoard = gameBoard;
+        this.player = player;
+        fieldOfView = new FieldOfView(sightRadius);
+        fieldOfView.update(gameBoard, player.getXPos(), player.getYPos());
+        scheduleMonsters();
     }
 
     public Player getPlayer() {
@@ -73,127 +158,496 @@ class GameModel {
 
     // Returns current monsters on the board as an array.
     public ArrayList<GameCharacter> getMonsters() {
-        return new ArrayList<>(gameBoard.getBoard().values());
+        return gameBoard.getBoard();
+    }
+
+    // Returns the monsters the player can see. Only the tiles within
+    // sight range are scanned, not the whole board.
+    public ArrayList<GameCharacter> getVisibleMonsters() {
+        ArrayList<GameCharacter> visible = new ArrayList<>();
+        gameBoard.charactersWithin(player.getXPos(), player.getYPos(), sightRadius, visible);
+        visible.removeIf(monster -> !fieldOfView.isVisible(monster.getXPos(), monster.getYPos()));
+        return visible;
     }
 
     public GameBoard getGameBoard() {
         return gameBoard;
     }
 
+    public GameEventBus getEventBus() {
+        return eventBus;
+    }
+
     public int getCurrentLevel() {
         return currentLevel;
     }
 
-    // Advances the level by generating a new one.
-    // Game board is reset and player turn is refreshed.
+    public int getTurnsTaken() {
+        return turnsTaken;
+    }
+
+    public RewindBuffer getHistory() {
+        return history;
+    }
+
+    // Replaces the history with an empty one of the given size.
+    // Zero turns recording off, and with it everything kept only
+    // for rewinding.
+    public void setHistoryMemory(long memoryBytes) {
+        history = new RewindBuffer(memoryBytes);
+        levelSchedulers.clear();
+        fallen.clear();
+        monsterScheduler.setRewindable(history.isEnabled());
+    }
+
+    // Undoes up to the given number of steps, newest first.
+    // A step is one player action or one monster turn; an attack that
+    // clears a level includes the move to the next one.
+    // Returns the number of steps undone.
+    public int rewind(int steps) {
+        return replayHistory(steps, true);
+    }
+
+    // Redoes up to the given number of rewound steps. Taking a new
+    // action after rewinding discards the steps that were rewound.
+    public int replay(int steps) {
+        return replayHistory(steps, false);
+    }
+
+    private int replayHistory(int steps, boolean backwards) {
+        int done = 0;
+        replaying = true;
+        try {
+            HistoryApplier applier = new HistoryApplier();
+            while (done < steps && (backwards ? history.stepBack(applier) : history.stepForward(applier)))
+                done++;
+        }
+        finally {
+            replaying = false;
+        }
+        if (done > 0) {
+            fieldOfView.update(gameBoard, player.getXPos(), player.getYPos());
+            monsterScheduler.reorder();
+            eventBus.publish(backwards ? GameEventType.HISTORY_REWOUND : GameEventType.HISTORY_REPLAYED,
+                player.getXPos(), player.getYPos(), done);
+        }
+        return done;
+    }
+
+    // Methods that record the current step into the history.
+    private void beginStep() {
+        if (!replaying)
+            history.beginStep(playerState());
+    }
+
+    private void endStep() {
+        if (!replaying)
+            history.endStep(playerState());
+    }
+
+    private void record(long delta) {
+        if (!replaying)
+            history.record(delta);
+    }
+
+    private boolean recording() {
+        return !replaying && history.isEnabled();
+    }
+
+    private void addFallen(GameCharacter monster) {
+        fallen.addLast(monster);
+        if (fallen.size() > maxFallen)
+            fallen.removeFirst();
+    }
+
+    private long playerState() {
+        return RewindBuffer.playerState(player.getXPos(), player.getYPos(), player.getHealth(),
+            player.getMoveRemaining(), playerHasAttacked);
+    }
+
+    private int tileOf(int x, int y) {
+        return y * gameBoard.getWidth() + x;
+    }
+
+    // Applies the recorded changes of a step to the model, in either
+    // direction. Tiles refer to whichever board is current at that
+    // point of the step.
+    class HistoryApplier implements RewindHandler {
+
+        @Override
+        public void restorePlayer(long state) {
+            player.restoreState(RewindBuffer.playerX(state), RewindBuffer.playerY(state),
+                RewindBuffer.playerHealth(state), RewindBuffer.playerMoves(state));
+            playerHasAttacked = RewindBuffer.playerAttacked(state);
+        }
+
+        @Override
+        public void apply(long delta, boolean undo) {
+            int width = gameBoard.getWidth();
+            switch (RewindBuffer.kindOf(delta)) {
+                case RewindBuffer.monsterMoved: {
+                    int from = RewindBuffer.firstTile(delta);
+                    int to = RewindBuffer.secondTile(delta);
+                    if (undo)
+                        gameBoard.moveMonster(to % width, to / width, from % width, from / width);
+                    else
+                        gameBoard.moveMonster(from % width, from / width, to % width, to / width);
+                    break;
+                }
+                case RewindBuffer.monsterHealth: {
+                    int tile = RewindBuffer.firstTile(delta);
+                    int before = RewindBuffer.healthBefore(delta);
+                    int after = RewindBuffer.healthAfter(delta);
+                    gameBoard.damageMonster(tile % width, tile / width, undo ? after - before : before - after);
+                    break;
+                }
+                case RewindBuffer.monsterRemoved: {
+                    int tile = RewindBuffer.firstTile(delta);
+                    if (undo) {
+                        // Monsters killed too long ago are spawned again.
+                        GameCharacter monster = fallen.pollLast();
+                        if (monster == null || tileOf(monster.getXPos(), monster.getYPos()) != tile) {
+                            CharacterType type = MonsterCatalog.getType(RewindBuffer.removedType(delta));
+                            monster = MonsterCatalog.spawn(type.getName(), tile % width, tile / width);
+                            monster.takeDamage(type.getMaxHealth() - RewindBuffer.removedHealth(delta));
+                        }
+                        gameBoard.addMonster(monster);
+                        monsterScheduler.revive(monster);
+                    }
+                    else {
+                        addFallen(gameBoard.getCharacterAtCoords(tile % width, tile / width));
+                        gameBoard.removeMonster(tile % width, tile / width);
+                    }
+                    eventBus.publish(undo ? GameEventType.MONSTER_DIED_UNDONE : GameEventType.MONSTER_DIED_REDONE,
+                        tile % width, tile / width, RewindBuffer.removedType(delta));
+                    break;
+                }
+                case RewindBuffer.playerHit: {
+                    int tile = RewindBuffer.firstTile(delta);
+                    eventBus.publish(undo ? GameEventType.PLAYER_HIT_UNDONE : GameEventType.PLAYER_HIT_REDONE,
+                        tile % width, tile / width, RewindBuffer.hitDamage(delta));
+                    break;
+                }
+                case RewindBuffer.monsterActed: {
+                    int tile = RewindBuffer.firstTile(delta);
+                    long tick = monsterScheduler.getCurrentTick() + RewindBuffer.actedTickOffset(delta);
+                    monsterScheduler.restoreAction(gameBoard.getCharacterAtCoords(tile % width, tile / width),
+                        RewindBuffer.actedEnergy(delta), tick, !undo);
+                    break;
+                }
+                case RewindBuffer.levelChanged:
+                    changeLevel(undo ? RewindBuffer.levelFrom(delta) : RewindBuffer.levelTo(delta), undo);
+                    break;
+                case RewindBuffer.turnEnded:
+                    turnsTaken += undo ? -1 : 1;
+                    // The clock is left at the start of the turn while
+                    // the monsters' actions are undone or redone.
+                    monsterScheduler.setCurrentTick(monsterScheduler.getCurrentTick()
+                        + (undo ? -TurnScheduler.ticksPerTurn : TurnScheduler.ticksPerTurn));
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    // True if the player can currently see the tile.
+    public boolean isTileVisible(int x, int y) {
+        return fieldOfView.isVisible(x, y);
+    }
+
+    // Advances the level, generating it if it hasn't been visited.
     public void advanceLevel() {
-        currentLevel++;
-        gameBoard = new GameBoard(LevelCreator.generateLevel(currentLevel));
+        goToLevel(currentLevel + 1);
+    }
+
+    // Moves the player to the given level. Visited levels are paged
+    // back in as they were left; new ones are generated.
+    // Game board is reset and player turn is refreshed.
+    public void goToLevel(int level) {
+        changeLevel(level, false);
+    }
+
+    // Monsters start the level with no saved energy, unless a level
+    // change is being undone.
+    private void changeLevel(int level, boolean undo) {
+        beginStep();
+        record(RewindBuffer.levelChanged(currentLevel, level));
+        residentLevels.put(currentLevel, gameBoard);
+        if (history.isEnabled())
+            levelSchedulers.put(currentLevel, monsterScheduler);
+        currentLevel = level;
+        gameBoard = loadLevel(level);
+        residentLevels.put(level, gameBoard);
+        evictDistantLevels();
+        fieldOfView.update(gameBoard, player.getXPos(), player.getYPos());
+        TurnScheduler leftScheduler = levelSchedulers.remove(level);
+        if (undo && leftScheduler != null) {
+            leftScheduler.attach(gameBoard);
+            monsterScheduler = leftScheduler;
+        }
+        else
+            scheduleMonsters();
+        if (!levelSchedulers.isEmpty())
+            levelSchedulers.keySet().retainAll(history.getLevelsChanged());
         player.newTurn();
         playerHasAttacked = false;
+        endStep();
+        // Levels moved through by a rewind or replay were not reached.
+        if (!replaying)
+            eventBus.publish(GameEventType.LEVEL_ADVANCED, player.getXPos(), player.getYPos(), currentLevel);
+    }
+
+    private GameBoard loadLevel(int level) {
+        GameBoard board = residentLevels.get(level);
+        if (board != null)
+            return board;
+        if (dungeonStore != null && dungeonStore.hasLevel(level)) {
+            try {
+                return dungeonStore.loadLevel(level);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return new GameBoard(LevelCreator.generateLevel(level));
+    }
+
+    // Writes levels more than one away from the current one to the
+    // dungeon store and drops them from the heap. If the store cannot
+    // be written, the level is kept on the heap instead.
+    private void evictDistantLevels() {
+        Iterator<Map.Entry<Integer, GameBoard>> iterator = residentLevels.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, GameBoard> entry = iterator.next();
+            if (Math.abs(entry.getKey() - currentLevel) <= 1)
+                continue;
+            try {
+                if (dungeonStore == null)
+                    dungeonStore = DungeonStore.createTemporary();
+                dungeonStore.saveLevel(entry.getKey(), entry.getValue());
+                TurnScheduler leftScheduler = levelSchedulers.get(entry.getKey());
+                if (leftScheduler != null)
+                    leftScheduler.detach(entry.getValue());
+                iterator.remove();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public int getResidentLevelCount() {
+        return residentLevels.size();
+    }
+
+    // Closes the dungeon store, if levels were ever paged out.
+    // The model shouldn't be used afterwards.
+    @Override
+    public void close() {
+        if (dungeonStore == null)
+            return;
+        try {
+            dungeonStore.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        dungeonStore = null;
+    }
+
+    // Puts every monster on the current board into a fresh scheduler.
+    private void scheduleMonsters() {
+        monsterScheduler = new TurnScheduler(history.isEnabled());
+        for (GameCharacter monster : gameBoard.getBoard())
+            monsterScheduler.add(monster);
     }
 
     // Determines if the character is adjacent to the tile at the
-    // given coordinates.
+    // given coordinates. Compares coordinates only; whether the tile
+    // is free is up to the caller.
     private boolean isAdjacentTile(int x, int y, GameCharacter character) {
-        int xDifference = Math.abs(x - character.getCoords()[0]);
-        int yDifference = Math.abs(y - character.getCoords()[1]);
+        int xDifference = Math.abs(x - character.getXPos());
+        int yDifference = Math.abs(y - character.getYPos());
         return (xDifference < 2 && yDifference < 2 && (xDifference + yDifference) != 0);
     }
 
     // Checks if there is an entity in an adjacent tile to attack
     public boolean checkAttack(int x, int y, GameCharacter character) {
-        return (isAdjacentTile(x, y, character) && gameBoard.isOccupied(x, y));
+        if (!isAdjacentTile(x, y, character))
+            return false;
+        int neighbours = gameBoard.neighbourMask(character.getXPos(), character.getYPos());
+        return (neighbours & GameBoard.neighbourBit(x - character.getXPos(), y - character.getYPos())) != 0;
     }
 
     /*
-     Advances the actions of each monster on the board.
-     Attacking is tried first, then each will try to move closer
-     to the player. If unable to move closer, they will move in a
-     random direction.
+     Runs the monster scheduler for one player turn. Monsters act
+     as often as their speed allows, and only the monsters that are
+     due are touched. Monsters due on the same tick act in two phases.
+     First each one decides what it wants to do (attack, step
+     closer to the player, or move randomly) against the board as it
+     stood before any of them acted. Nothing is changed during this
+     phase, so large groups are evaluated in parallel.
+     The intents are then resolved one at a time in board order, so the
+     outcome no longer depends on hash map iteration order.
     */
     public void monsterTurn() {
-        for (GameCharacter monster : gameBoard.getBoard().values()) {
-            // Attack if player is adjacent.
-            if (isAdjacentTile(player.getCoords()[0], player.getCoords()[1], monster)) {
-                player.takeDamage(monster.attack());
-                SoundSystem.getPlayerHit().start();
-                // If attack kills player, end game
-                if (!(player.isAlive()))
-                    gameOver();
-            }
-            else {
-                int[] checkMove = moveCloserToPlayer(monster.getCoords()[0], monster.getCoords()[1]);
-                // Move closer to player if space is unoccupied.
-                if (gameBoard.isOpen(checkMove[0], checkMove[1]))
-                    monster.move(checkMove[0], checkMove[1]);
-                else {
-                    // Random move if nothing else.
-                    int[] randomMove = generateRandomMove(monster.getCoords()[0], monster.getCoords()[1]);
-                    if (gameBoard.isOpen(randomMove[0], randomMove[1]))
-                        monster.move(randomMove[0], randomMove[1]);
-                }
-            }
-            gameBoard.resetBoard();
+        beginStep();
+        long endOfTurn = monsterScheduler.getCurrentTick() + TurnScheduler.ticksPerTurn;
+        ArrayList<GameCharacter> due = new ArrayList<>();
+        while (monsterScheduler.nextDue(endOfTurn, due, this::stillOnBoard)) {
+            if (recording())
+                recordActions(due, endOfTurn - TurnScheduler.ticksPerTurn);
+            Stream<GameCharacter> monsterStream = (due.size() > parallelIntentThreshold)
+                ? due.parallelStream() : due.stream();
+            ArrayList<MonsterIntent> intents = monsterStream
+                .map(this::decideIntent)
+                .sorted(MonsterIntent.boardOrder)
+                .collect(Collectors.toCollection(ArrayList::new));
+            for (MonsterIntent intent : intents)
+                resolveIntent(intent);
+            due.clear();
         }
+        monsterScheduler.advanceTo(endOfTurn);
+        turnsTaken++;
+        record(RewindBuffer.turnEnded());
         player.newTurn();
+        // Part of the monster turn's step, so a replayed turn ends
+        // exactly where the real one did.
+        resetPlayerTurn();
+        endStep();
+        eventBus.publish(GameEventType.TURN_ENDED, player.getXPos(), player.getYPos(), turnsTaken);
     }
 
-    // Generates random x and y within bounds of game board.
-    // Returned as an array of ints.
-    private int[] generateRandomMove(int x, int y) {
-        Random random = new Random();
-        int randomX = random.nextInt(3);
-        int randomY = random.nextInt(3);
-        randomX += (x - 1);
-        if (randomX == 0 || randomX == 7)
-            randomX = x;
-        randomY += (y - 1);
-        if (randomY == 0 || randomY == 7)
-            randomY = y;
-        return new int[] {randomX, randomY};
+    // Records the energy each due monster had before acting, so a
+    // rewind can give it back. Recorded before anyone moves.
+    private void recordActions(ArrayList<GameCharacter> due, long turnStart) {
+        int tickOffset = (int) (monsterScheduler.getCurrentTick() - turnStart);
+        for (GameCharacter monster : due) {
+            record(RewindBuffer.monsterActed(tileOf(monster.getXPos(), monster.getYPos()),
+                monsterScheduler.getEnergyBeforeAction(monster), tickOffset));
+        }
+    }
+
+    // Killed monsters are left in the scheduler and dropped
+    // when they next come due.
+    private boolean stillOnBoard(GameCharacter monster) {
+        return monster.isAlive() && gameBoard.getCharacterAtCoords(monster.getXPos(), monster.getYPos()) == monster;
+    }
+
+    // Decides what a monster will do this turn. Only reads the board.
+    private MonsterIntent decideIntent(GameCharacter monster) {
+        int x = monster.getXPos();
+        int y = monster.getYPos();
+        // Attack if player is adjacent.
+        if (isAdjacentTile(player.getXPos(), player.getYPos(), monster))
+            return MonsterIntent.attack(monster, x, y);
+        // Move closer to player if it can see them and space is unoccupied.
+        // Line of sight is symmetric, so the player's view is reused here.
+        // The step is towards the player, so it never leaves the board.
+        if (fieldOfView.isVisible(x, y)) {
+            int closerX = stepTowards(x, player.getXPos());
+            int closerY = stepTowards(y, player.getYPos());
+            int neighbours = gameBoard.neighbourMask(x, y);
+            if ((neighbours & GameBoard.neighbourBit(closerX - x, closerY - y)) == 0)
+                return MonsterIntent.move(monster, x, y, closerX, closerY);
+        }
+        // Random move if nothing else.
+        Random random = ThreadLocalRandom.current();
+        return MonsterIntent.move(monster, x, y,
+            randomStep(random, x, gameBoard.getWidth()), randomStep(random, y, gameBoard.getHeight()));
+    }
+
+    // Applies a single intent. Moves are only made if the target tile
+    // is still free after the intents before it have been resolved.
+    private void resolveIntent(MonsterIntent intent) {
+        if (intent.isAttack()) {
+            // Attacks on a dead player are dropped.
+            if (!player.isAlive())
+                return;
+            int damage = intent.getMonster().attack();
+            player.takeDamage(damage);
+            record(RewindBuffer.playerHit(tileOf(intent.getFromX(), intent.getFromY()), damage));
+            eventBus.publish(GameEventType.PLAYER_HIT, intent.getFromX(), intent.getFromY(), damage);
+            if (!player.isAlive())
+                eventBus.publish(GameEventType.GAME_OVER, player.getXPos(), player.getYPos(), currentLevel);
+            return;
+        }
+        if (tileEmpty(intent.getTargetX(), intent.getTargetY())) {
+            gameBoard.moveMonster(intent.getFromX(), intent.getFromY(), intent.getTargetX(), intent.getTargetY());
+            record(RewindBuffer.monsterMoved(tileOf(intent.getFromX(), intent.getFromY()),
+                tileOf(intent.getTargetX(), intent.getTargetY())));
+        }
+    }
+
+    // Generates a random coordinate next to the given one, within
+    // the walls of a board side of the given size.
+    private static int randomStep(Random random, int coordinate, int side) {
+        int step = coordinate + random.nextInt(3) - 1;
+        if (step <= 0 || step >= side - 1)
+            step = coordinate;
+        return step;
     }
 
 
-    // Finds the closest tile to the player.
+    // Moves one coordinate a step closer to the player's.
     // Bounds checking is not needed since player
     // cannot move out of bounds.
-    private int[] moveCloserToPlayer(int x, int y) {
-        int playerX = player.getCoords()[0];
-        int playerY = player.getCoords()[1];
-        int closerX = x;
-        int closerY = y;
-        if (playerX > x)
-            closerX = x + 1;
-        else if (playerX < x)
-            closerX = x - 1;
-        if (playerY > y)
-            closerY = y + 1;
-        else if (playerY < y)
-            closerY = y - 1;
-        return new int[]{closerX, closerY};
+    private static int stepTowards(int coordinate, int playerCoordinate) {
+        if (playerCoordinate > coordinate)
+            return coordinate + 1;
+        if (playerCoordinate < coordinate)
+            return coordinate - 1;
+        return coordinate;
+    }
+
+    // Attacks, then moves on to the next level if that cleared this
+    // one, or wins the game if it was the last. The kill and the level
+    // change are one step of the history, so undoing a level change
+    // also undoes the kill that caused it.
+    public void playerAttackAndAdvance(int x, int y) {
+        if (playerHasAttacked)
+            return;
+        beginStep();
+        playerAttack(x, y);
+        if (levelWon() && currentLevel < maxLevel)
+            advanceLevel();
+        endStep();
+        // Only the last level is still won after that.
+        if (levelWon())
+            eventBus.publish(GameEventType.GAME_WON, player.getXPos(), player.getYPos(), currentLevel);
     }
 
     // If player can attack this turn, deal damage.
     public void playerAttack(int x, int y) {
         if (playerHasAttacked)
             return;
-        gameBoard.getCharacterAtCoords(x, y).takeDamage(player.attack());
-        SoundSystem.getEnemyHit().start();
-        if (!(gameBoard.getCharacterAtCoords(x, y).isAlive())) {
+        beginStep();
+        int damage = player.attack();
+        GameCharacter monster = gameBoard.damageMonster(x, y, damage);
+        record(RewindBuffer.monsterHealth(tileOf(x, y), monster.getHealth() + damage, monster.getHealth()));
+        eventBus.publish(GameEventType.ENEMY_HIT, x, y, damage);
+        if (!(monster.isAlive())) {
+            if (recording())
+                addFallen(monster);
             gameBoard.removeMonster(x, y);
-            gameBoard.resetBoard();
+            record(RewindBuffer.monsterRemoved(tileOf(x, y), monster.getType().getId(), monster.getHealth()));
+            eventBus.publish(GameEventType.MONSTER_DIED, x, y, monster.getType().getId());
         }
         playerHasAttacked = true;
+        endStep();
     }
 
     // If within bounds and unoccupied, moves player to tile.
     public void playerMove(int x, int y) {
-        if (x == 0 || x == 7 || y == 0 || y == 7)
+        if (gameBoard.isWall(x, y))
             return;
         if (isAdjacentTile(x, y, player) && !(gameBoard.isOccupied(x, y)) && player.ableToMove()) {
+            beginStep();
             player.move(x, y);
-            gameBoard.resetBoard();
+            fieldOfView.update(gameBoard, x, y);
+            endStep();
+            eventBus.publish(GameEventType.PLAYER_MOVED, x, y, player.getMoveRemaining());
         }
     }
 
@@ -208,13 +662,7 @@ class GameModel {
 
     // Checks if there are any monsters around the player.
     private boolean playerAlone() {
-        for (int i = -1; i < 2; i++) {
-            for (int j = -1; j < 2; j++) {
-                if (gameBoard.isOccupied(player.getXPos() + i, player.getYPos() + j))
-                    return false;
-            }
-        }
-        return true;
+        return gameBoard.neighbourMask(player.getXPos(), player.getYPos()) == 0;
     }
 
     // Returns true if there is not a monster on the tile
@@ -229,6 +677,21 @@ class GameModel {
         return !player.isAlive();
     }
 
+    /*
+     Zobrist hash of the whole game position: the board's monsters
+     plus the player's tile, health, moves left, whether they have
+     attacked, and the current level. Computed in O(1) from the
+     board's incrementally updated hash.
+    */
+    public long positionHash() {
+        long hash = gameBoard.getHash();
+        hash ^= ZobristKeys.key(ZobristKeys.playerTile, player.getXPos(), player.getYPos());
+        hash ^= ZobristKeys.key(ZobristKeys.playerHealth, player.getHealth(), 0);
+        hash ^= ZobristKeys.key(ZobristKeys.playerMoves, player.getMoveRemaining(), playerHasAttacked ? 1 : 0);
+        hash ^= ZobristKeys.key(ZobristKeys.level, currentLevel, 0);
+        return hash;
+    }
+
     public boolean levelWon() {
         return gameBoard.getNumberOfMonsters() == 0;
     }
@@ -236,468 +699,2950 @@ class GameModel {
 }
 
 /**
- * The game view handles the GUI of the game:
- * Loading screens and updating sprites as
- * the game progresses.
- * During the game proper, creates an array of JButtons
- * that serve as "tiles" where the sprite icons are placed.
+ * A single monster's decision for the turn, made against the
+ * board as it stood before any monster acted.
+ * Either an attack on the player or a move to a target tile.
  */
-class GameView extends JFrame {
+class MonsterIntent {
+
+    // Resolves intents left to right, top to bottom by starting tile.
+    public static final Comparator<MonsterIntent> boardOrder =
+        Comparator.comparingInt(MonsterIntent::getFromX).thenComparingInt(MonsterIntent::getFromY);
+
+    private final GameCharacter monster;
+    private final boolean attack;
+    private final int fromX;
+    private final int fromY;
+    private final int targetX;
+    private final int targetY;
+
+    private MonsterIntent(GameCharacter monster, boolean attack, int fromX, int fromY, int targetX, int targetY) {
+        this.monster = monster;
+        this.attack = attack;
+        this.fromX = fromX;
+        this.fromY = fromY;
+        this.targetX = targetX;
+        this.targetY = targetY;
+    }
 
-    private static final int tilesPerRow = 8;
-    private GameModel gameModel;
-    private GameWindow gameWindow;
-    private JButton[][] gameTiles;
+    public static MonsterIntent attack(GameCharacter monster, int x, int y) {
+        return new MonsterIntent(monster, true, x, y, x, y);
+    }
 
-    /**
-     * Constructor that initializes a game window object
-     * and the game tiles array.
-     * @param gameModel holds an instance to the model.
-     */
-    public GameView (GameModel gameModel) {
-        this.gameModel = gameModel;
-        gameWindow = new GameWindow();
+    public static MonsterIntent move(GameCharacter monster, int fromX, int fromY, int targetX, int targetY) {
+        return new MonsterIntent(monster, false, fromX, fromY, targetX, targetY);
+    }
 
-        gameTiles = new JButton[tilesPerRow][tilesPerRow];
-        setGameTiles();
+    public GameCharacter getMonster() {
+        return monster;
     }
 
-    public GameWindow getGameWindow() {
-        return gameWindow;
+    public boolean isAttack() {
+        return attack;
     }
 
-    // For each tile in the array, initialize a new
-    // JButton and set its attributes so that it will
-    // be transparent expect for the icon placed on it.
-    private void setGameTiles() {
-        for (int i = 0; i < tilesPerRow; i++) {
-            for (int j = 0; j < tilesPerRow; j++) {
-                gameTiles[i][j] = new JButton();
-                gameTiles[i][j].setOpaque(false);
-                gameTiles[i][j].setBorder(BorderFactory.createEmptyBorder());
-                gameTiles[i][j].setContentAreaFilled(false);
-                gameTiles[i][j].setBorderPainted(false);
-                gameTiles[i][j].setFocusPainted(false);
-            }
-        }
+    public int getFromX() {
+        return fromX;
     }
 
-    // Removes the title screen and adds a the instructions as a new
-    // JButton with a listener.
-    public void switchToInstructions(ActionListener actionListener) {
-        gameWindow.remove(gameWindow.getButtonScreen());
-        JButton instructions = gameWindow.setButtonScreen(ImageLoader.imageToAdd(ImageLoader.instructionScreenImage));
-        gameWindow.getButtonScreen().addActionListener(actionListener);
-        gameWindow.add(instructions, BorderLayout.CENTER);
-        gameWindow.revalidate();
-        gameWindow.repaint();
+    public int getFromY() {
+        return fromY;
+    }
 
+    public int getTargetX() {
+        return targetX;
     }
 
-    // Removes instructions and adds the game JPanel to the frame.
-    // Adds the game tiles to the JPanel that was just created.
-    public void switchToGame() {
-        gameWindow.remove(gameWindow.getButtonScreen());
-        JPanel game = gameWindow.setGameScreen(ImageLoader.getImageAsBuffered(ImageLoader.gameScreenImage));
-        gameWindow.add(game, BorderLayout.CENTER);
-        addGameTilesToGame(gameWindow.getGameScreen());
-        gameWindow.revalidate();
-        gameWindow.repaint();
+    public int getTargetY() {
+        return targetY;
     }
+}
 
-    // Each game tile JButton is added to the JPanel passed
-    // in as a parameter.
-    private void addGameTilesToGame (JPanel gameScreen) {
-        for (int i = 0; i < tilesPerRow; i++) {
-            for (int j = 0; j < tilesPerRow; j++) {
-                gameScreen.add(gameTiles[i][j]);
-            }
-        }
+/**
+ * Energy-based scheduler for monster actions.
+ * Every tick an actor gains energy equal to its speed, and it acts
+ * each time it has saved up the cost of an action. Actors wait in a
+ * priority queue ordered by the tick they will next be ready, so only
+ * actors that are due are touched and each action costs O(log n).
+ * A player turn is worth enough ticks for a speed one actor to act once.
+ */
+class TurnScheduler {
+
+    public static final int ticksPerTurn = 12;
+    // Energy spent per action.
+    static final int actionCost = ticksPerTurn;
+
+    private final PriorityQueue<ScheduledActor> queue = new PriorityQueue<>();
+    // Every actor added, including those dropped from the queue,
+    // so a rewind can put them back as they were. Empty unless the
+    // scheduler is rewindable.
+    private final Map<GameCharacter, ScheduledActor> actors = new IdentityHashMap<>();
+    private boolean rewindable;
+    // Tile, energy, ready tick and order of each actor that was on
+    // the board when it was paged out; null while attached.
+    private long[] detached;
+    private long currentTick;
+    private long actorsAdded;
+
+    /**
+     * Constructor
+     * @param rewindable whether to keep what rewinding needs.
+     */
+    public TurnScheduler(boolean rewindable) {
+        this.rewindable = rewindable;
     }
 
-    // Listener methods
-    public void receiveTitleSwitchListener(ActionListener actionListener) {
-        gameWindow.getButtonScreen().addActionListener(actionListener);
+    // Adds an actor with no saved energy. Actors that cannot move
+    // never come due and are left out.
+    public void add(GameCharacter actor) {
+        if (actor.getMoveSpeed() < 1)
+            return;
+        ScheduledActor scheduled = new ScheduledActor(actor, actorsAdded++);
+        scheduled.scheduleAfter(currentTick);
+        queue.add(scheduled);
+        if (rewindable)
+            actors.put(actor, scheduled);
     }
 
-    public void receiveGameTileListener(ActionListener actionListener) {
-        for (int i = 0; i < tilesPerRow; i++) {
-            for (int j = 0; j < tilesPerRow; j++) {
-                gameTiles[i][j].addActionListener(actionListener);
-                gameTiles[i][j].setActionCommand(Integer.toString(i) + j);
+    /*
+     Collects every actor ready on the earliest due tick that is no
+     later than the given tick, and moves the clock to it.
+     Actors that fail the check are dropped; the rest are rescheduled
+     for their next action. Returns false if no actor is due.
+    */
+    public boolean nextDue(long untilTick, ArrayList<GameCharacter> due, Predicate<GameCharacter> stillActive) {
+        while (!queue.isEmpty() && queue.peek().getReadyTick() <= untilTick) {
+            long tick = queue.peek().getReadyTick();
+            currentTick = tick;
+            ArrayList<ScheduledActor> ready = new ArrayList<>();
+            while (!queue.isEmpty() && queue.peek().getReadyTick() == tick)
+                ready.add(queue.poll());
+            for (ScheduledActor scheduled : ready) {
+                if (!stillActive.test(scheduled.getActor())) {
+                    if (rewindable)
+                        scheduled.setDropped(true);
+                    continue;
+                }
+                due.add(scheduled.getActor());
+                scheduled.act(tick);
+                queue.add(scheduled);
             }
+            if (!due.isEmpty())
+                return true;
         }
+        return false;
     }
 
-    // Adds player sprite icon to JButton
-    public void drawPlayer(Player player) {
-        gameTiles[player.getXPos()][player.getYPos()].setIcon(player.getSprite());
+    // Moves the clock forward without acting.
+    public void advanceTo(long tick) {
+        currentTick = Math.max(currentTick, tick);
     }
 
-    // Adds monster sprite icons to JButtons
-    public void drawMonsters(ArrayList<GameCharacter> monsters) {
-        for (GameCharacter monster : monsters) {
-            gameTiles[monster.getCoords()[0]][monster.getCoords()[1]].setIcon(monster.getSprite());
-        }
+    public long getCurrentTick() {
+        return currentTick;
     }
 
-    // Resets game tile icons to null if there is no character there.
-    // Calls the methods to draw player and monsters at their current positions.
-    public void updateBoard() {
-        for (int i = 1; i < tilesPerRow; i++) {
-            for (int j = 1; j < tilesPerRow; j++) {
-                if (gameModel.tileEmpty(i, j)) {
-                    gameTiles[i][j].setIcon(null);
-                }
-            }
+    // Starts or stops keeping what rewinding needs. Actors already
+    // dropped are not brought back.
+    public void setRewindable(boolean rewindable) {
+        this.rewindable = rewindable;
+        actors.clear();
+        if (rewindable) {
+            for (ScheduledActor scheduled : queue)
+                actors.put(scheduled.getActor(), scheduled);
         }
-        drawPlayer(gameModel.getPlayer());
-        drawMonsters(gameModel.getMonsters());
     }
 
-    // Following methods reset the JFrame and sets up a new screen
-    // depending on game outcome. Screens are JButtons that have
-    // listeners for on-click actions.
-    public void switchToGameOver(ActionListener actionListener) {
-        gameWindow.getContentPane().removeAll();
-        JButton gameOver = gameWindow.setButtonScreen(ImageLoader.imageToAdd(ImageLoader.gameOverScreenImage));
-        gameWindow.getButtonScreen().addActionListener(actionListener);
-        gameWindow.add(gameOver, BorderLayout.CENTER);
-        gameWindow.revalidate();
-        gameWindow.repaint();
+    // Methods used when rewinding. They change actors in place, so
+    // reorder must be called once they are all done.
+    public void setCurrentTick(long tick) {
+        currentTick = tick;
     }
 
-    public void switchToGameWin(ActionListener actionListener) {
-        gameWindow.getContentPane().removeAll();
-        JButton gameWin = gameWindow.setButtonScreen(ImageLoader.imageToAdd(ImageLoader.gameWinScreenOneImage));
-        gameWindow.getButtonScreen().addActionListener(actionListener);
-        gameWindow.add(gameWin, BorderLayout.CENTER);
-        gameWindow.revalidate();
-        gameWindow.repaint();
+    public int getEnergyBeforeAction(GameCharacter actor) {
+        ScheduledActor scheduled = actors.get(actor);
+        return (scheduled == null) ? 0 : scheduled.getEnergyBeforeAction();
     }
 
-    public void switchToGameWinTwo(ActionListener actionListener) {
-        gameWindow.getContentPane().removeAll();
-        JButton gameWin = gameWindow.setButtonScreen(ImageLoader.imageToAdd(ImageLoader.gameWinScreenTwoImage));
-        gameWindow.getButtonScreen().addActionListener(actionListener);
-        gameWindow.add(gameWin, BorderLayout.CENTER);
-        gameWindow.revalidate();
-        gameWindow.repaint();
+    // Puts an actor back to the energy it had when it came due on the
+    // given tick, then acts again if the action is being redone.
+    public void restoreAction(GameCharacter actor, int energy, long tick, boolean redo) {
+        ScheduledActor scheduled = actors.get(actor);
+        if (scheduled == null)
+            return;
+        scheduled.restore(energy, tick);
+        if (redo)
+            scheduled.act(tick);
     }
 
-    // Updates the heart sprites in the top-left corner.
-    // Actually two instances of the same sprite, first half
-    // showing on first tile and second half on the second.
-    public void updatePlayerHealth() {
-        // Guard block - player out of health.
-        if (gameModel.getPlayer().getHealth() < 1)
+    // Puts a monster brought back to life back in the queue with the
+    // energy it had. Monsters the scheduler never saw start afresh.
+    public void revive(GameCharacter actor) {
+        ScheduledActor scheduled = actors.get(actor);
+        if (scheduled == null)
+            add(actor);
+        else
+            scheduled.setDropped(false);
+    }
+
+    // Lets go of the actors on the board, keeping their tile, energy,
+    // ready tick and order, so the board can be paged out to the
+    // dungeon store. Actors no longer on the board are kept as they
+    // are, so killed monsters brought back by a rewind get their
+    // place back. Call attach with the board once it is read back.
+    public void detach(GameBoard board) {
+        ArrayList<ScheduledActor> onBoard = new ArrayList<>();
+        for (ScheduledActor scheduled : actors.values()) {
+            GameCharacter actor = scheduled.getActor();
+            if (board.getCharacterAtCoords(actor.getXPos(), actor.getYPos()) == actor)
+                onBoard.add(scheduled);
+        }
+        detached = new long[onBoard.size() * 4];
+        for (int i = 0; i < onBoard.size(); i++) {
+            ScheduledActor scheduled = onBoard.get(i);
+            GameCharacter actor = scheduled.getActor();
+            detached[i * 4] = (long) actor.getYPos() * board.getWidth() + actor.getXPos();
+            detached[i * 4 + 1] = scheduled.getEnergy();
+            detached[i * 4 + 2] = scheduled.getReadyTick();
+            detached[i * 4 + 3] = scheduled.getOrder();
+            actors.remove(actor);
+        }
+        queue.clear();
+    }
+
+    // Schedules the monsters of a board read back from the dungeon
+    // store as their tiles were when it was detached.
+    public void attach(GameBoard board) {
+        if (detached == null)
             return;
-        // Align the icons. Left-side for the left and vice-versa.
-        // Creates borders so the two halves align to look like a whole.
-        gameTiles[0][0].setHorizontalAlignment(JLabel.LEFT);
-        gameTiles[0][0].setBorder(new EmptyBorder(0, 11, 75, 17));
-        gameTiles[0][1].setHorizontalAlignment(JLabel.RIGHT);
-        gameTiles[0][1].setBorder(new EmptyBorder(0, 0, 75, 6));
-        gameTiles[0][0].setIcon(ImageLoader.getPlayerHeartsIcon(gameModel.getPlayer().getHealth()));
-        gameTiles[0][1].setIcon(ImageLoader.getPlayerHeartsIcon(gameModel.getPlayer().getHealth()));
+        for (int i = 0; i < detached.length; i += 4) {
+            GameCharacter actor = board.getCharacterAtCoords((int) (detached[i] % board.getWidth()),
+                (int) (detached[i] / board.getWidth()));
+            if (actor == null || actor.getMoveSpeed() < 1)
+                continue;
+            ScheduledActor scheduled = new ScheduledActor(actor, detached[i + 3]);
+            scheduled.restore((int) detached[i + 1], detached[i + 2]);
+            actors.put(actor, scheduled);
+        }
+        detached = null;
+        reorder();
+    }
+
+    // Rebuilds the queue from every actor that hasn't been dropped.
+    public void reorder() {
+        queue.clear();
+        for (ScheduledActor scheduled : actors.values()) {
+            if (!scheduled.isDropped())
+                queue.add(scheduled);
+        }
     }
 
+    public int size() {
+        return queue.size();
+    }
 }
 
 /**
- * Game controller that acts as an observer between the
- * view and the model.
- * Calls methods on each based on the user input and
- * state of the game.
+ * An actor waiting in the turn scheduler along with its saved energy.
+ * Ties on the ready tick go to whichever actor was added first.
  */
-class GameController {
+class ScheduledActor implements Comparable<ScheduledActor> {
+
+    private static final int actionCost = TurnScheduler.actionCost;
+
+    private final GameCharacter actor;
+    private final long order;
+    private final int speed;
+    private long readyTick;
+    private int energy;
+    private int energyBeforeAction;
+    private boolean dropped;
+
+    public ScheduledActor(GameCharacter actor, long order) {
+        this.actor = actor;
+        this.order = order;
+        this.speed = actor.getMoveSpeed();
+    }
 
-    private GameView gameView;
-    private GameModel gameModel;
-    private Clip currentTheme;
+    public GameCharacter getActor() {
+        return actor;
+    }
+
+    public long getReadyTick() {
+        return readyTick;
+    }
+
+    public long getOrder() {
+        return order;
+    }
+
+    // Spends the cost of an action and works out when the
+    // actor will have saved up enough for the next one.
+    public void act(long tick) {
+        energyBeforeAction = energy;
+        energy -= actionCost;
+        scheduleAfter(tick);
+    }
+
+    // Sets the actor back to being due on the given tick.
+    public void restore(int energy, long tick) {
+        this.energy = energy;
+        readyTick = tick;
+    }
+
+    public int getEnergy() {
+        return energy;
+    }
+
+    public int getEnergyBeforeAction() {
+        return energyBeforeAction;
+    }
+
+    public boolean isDropped() {
+        return dropped;
+    }
+
+    public void setDropped(boolean dropped) {
+        this.dropped = dropped;
+    }
+
+    public void scheduleAfter(long tick) {
+        int needed = actionCost - energy;
+        int ticks = Math.max(1, (needed + speed - 1) / speed);
+        energy += ticks * speed;
+        readyTick = tick + ticks;
+    }
+
+    @Override
+    public int compareTo(ScheduledActor other) {
+        if (readyTick != other.readyTick)
+            return Long.compare(readyTick, other.readyTick);
+        return Long.compare(order, other.order);
+    }
+}
+
+/**
+ * Callback that applies the steps of a RewindBuffer to the game.
+ */
+interface RewindHandler {
+    // Sets the player to a state recorded at the start or end of a step.
+    void restorePlayer(long state);
+
+    // Applies one recorded change, backwards if undo is true.
+    void apply(long delta, boolean undo);
+}
+
+/**
+ * Ring buffer of the most recent steps of play, kept as reversible
+ * changes so the game can be stepped back and forward again in time
+ * proportional to what changed rather than re-simulated.
+ * Each change is packed into one long: the kind in the top four bits
+ * and its tiles, health or levels below. A step is the player's state
+ * at its start, the changes made, and the player's state at its end.
+ * The buffer has a fixed size in bytes. When it is full, the oldest
+ * steps are dropped whole; a step too big for the whole buffer clears
+ * the history instead of being kept in part.
+ */
+class RewindBuffer {
+
+    public static final long defaultMemoryBytes = Long.getLong("chelon.rewind", 1 << 20);
+
+    // Kinds of entry.
+    public static final int stepStart = 1;
+    public static final int stepEnd = 2;
+    public static final int monsterMoved = 3;
+    public static final int monsterHealth = 4;
+    public static final int monsterRemoved = 5;
+    public static final int levelChanged = 6;
+    public static final int turnEnded = 7;
+    public static final int monsterActed = 8;
+    public static final int playerHit = 9;
+
+    private static final int tileBits = 30;
+    private static final int healthBits = 15;
+
+    private final int capacity;
+    // Allocated on the first step, so models that never record
+    // anything don't pay for it.
+    private long[] entries;
+    // Positions count up forever and wrap into the array. Steps from
+    // oldest to cursor can be undone, from cursor to newest redone.
+    private long oldest;
+    private long cursor;
+    private long newest;
+    private int openSteps;
+    private long openStepStart;
+    private boolean stepDropped;
+    private long stepsDropped;
 
     /**
-     * Constructor gets model and view references, gives view
-     * listeners, and starts the intro theme music.
-     * @param view reference to the game view
-     * @param model reference to the game model
+     * Constructor
+     * @param memoryBytes size of the buffer. Zero records nothing.
      */
-    public GameController(GameView view, GameModel model) {
-        gameView = view;
-        gameModel = model;
-        gameView.receiveTitleSwitchListener(new TitleSwitchListener());
-        gameView.receiveGameTileListener(new GameTileListener());
-        currentTheme = SoundSystem.getIntro();
-        currentTheme.start();
+    public RewindBuffer(long memoryBytes) {
+        capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(0, memoryBytes / Long.BYTES));
     }
 
-    // Inner class that notifies view to switch from the title screen.
-    class TitleSwitchListener implements ActionListener {
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
 
-        @Override
-        public void actionPerformed(ActionEvent e) {
-            gameView.switchToInstructions(new InstructionSwitchListener());
-        }
+    // Starts a step. Steps started inside a step become part of it.
+    public void beginStep(long playerState) {
+        if (openSteps++ > 0)
+            return;
+        newest = cursor;
+        openStepStart = cursor;
+        stepDropped = false;
+        append(entry(stepStart, playerState));
     }
 
-    // Inner class that notifies view to switch to the game screen.
-    // Tells the view to setup game elements and switches music.
-    class InstructionSwitchListener implements ActionListener {
+    public void record(long delta) {
+        if (openSteps > 0)
+            append(delta);
+    }
 
-        @Override
-        public void actionPerformed(ActionEvent e) {
-            gameView.switchToGame();
-            gameView.drawMonsters(gameModel.getMonsters());
-            gameView.drawPlayer(gameModel.getPlayer());
-            gameView.updatePlayerHealth();
-            currentTheme.stop();
-            currentTheme = SoundSystem.getGameTheme();
-            currentTheme.loop(Clip.LOOP_CONTINUOUSLY);
+    public void endStep(long playerState) {
+        if (openSteps == 0 || --openSteps > 0)
+            return;
+        append(entry(stepEnd, playerState));
+        if (stepDropped) {
+            oldest = cursor;
+            newest = cursor;
+            stepsDropped++;
         }
     }
 
-    //Inner class that detects user input during game,
-    // notifies view and model of updates in the game state.
-    class GameTileListener implements ActionListener {
+    // Undoes the step before the cursor. Returns false if there is none.
+    public boolean stepBack(RewindHandler handler) {
+        if (openSteps > 0 || cursor == oldest)
+            return false;
+        long position = cursor - 1;
+        while (kindOf(entryAt(--position)) != stepStart)
+            handler.apply(entryAt(position), true);
+        handler.restorePlayer(entryAt(position));
+        cursor = position;
+        return true;
+    }
 
-        @Override
-        public void actionPerformed(ActionEvent e) {
-            // Get tile user clicked and see if it was an enemy or open space.
-            // If occupied, attack. Otherwise, move.
-            int[] coords = gameModel.getGameBoard().coordsAsInts(e.getActionCommand());
-            if (gameModel.checkAttack(coords[0], coords[1], gameModel.getPlayer())) {
-                gameModel.playerAttack(coords[0], coords[1]);
-                // If all monsters defeated, detect if game won or just level.
-                if (gameModel.levelWon()) {
-                    if (gameModel.getCurrentLevel() == GameModel.maxLevel) {
-                        gameView.switchToGameWin(new GameWinListener());
-                        currentTheme.stop();
-                        currentTheme = SoundSystem.getGameWin();
-                        currentTheme.loop(Clip.LOOP_CONTINUOUSLY);
-                    }
-                    else
-                        gameModel.advanceLevel();
-                }
-            }
-            else
-                gameModel.playerMove(coords[0], coords[1]);
+    // Redoes the step after the cursor. Returns false if there is none.
+    public boolean stepForward(RewindHandler handler) {
+        if (openSteps > 0 || cursor == newest)
+            return false;
+        long position = cursor;
+        handler.restorePlayer(entryAt(position));
+        while (kindOf(entryAt(++position)) != stepEnd)
+            handler.apply(entryAt(position), false);
+        handler.restorePlayer(entryAt(position));
+        cursor = position + 1;
+        return true;
+    }
 
-            gameView.updateBoard();
+    // Number of steps that can be undone. Walks the steps, so it is
+    // meant for tools rather than every frame.
+    public int getStepsBack() {
+        return countSteps(oldest, cursor);
+    }
 
-            // If the player is out of actions, model processes monster turns.
-            if (gameModel.playerTurnOver()) {
-                gameModel.monsterTurn();
-                // If player out of health, game over.
-                if (gameModel.gameOver()) {
-                    gameView.switchToGameOver(new GameOverListener());
-                    currentTheme.stop();
-                    SoundSystem.getNecroLaugh().start();
-                }
-                gameView.updatePlayerHealth();
-                gameModel.resetPlayerTurn();
-                gameView.updateBoard();
+    public int getStepsForward() {
+        return countSteps(cursor, newest);
+    }
+
+    // Levels on either side of the level changes that can still be
+    // undone or redone. Walks the steps, like the counts above.
+    public Set<Integer> getLevelsChanged() {
+        Set<Integer> levels = new HashSet<>();
+        for (long position = oldest; position < newest; position++) {
+            long entry = entryAt(position);
+            if (kindOf(entry) == levelChanged) {
+                levels.add(levelFrom(entry));
+                levels.add(levelTo(entry));
             }
         }
+        return levels;
     }
 
-    // Exit the program when user clicks on game over screen.
-    class GameOverListener implements ActionListener {
+    // Steps lost because they didn't fit in the buffer on their own.
+    public long getStepsDropped() {
+        return stepsDropped;
+    }
 
-        @Override
-        public void actionPerformed(ActionEvent e) {
-            System.exit(0);
-        }
+    public long getMemoryBytes() {
+        return (long) capacity * Long.BYTES;
     }
 
-    // Notify the view to update to the game win screen.
-    class GameWinListener implements ActionListener {
+    // Entries in use, out of the buffer's capacity.
+    public long getEntriesUsed() {
+        return newest - oldest;
+    }
 
-        @Override
-        public void actionPerformed(ActionEvent e) {
-            gameView.switchToGameWinTwo(new GameWinTwoListener());
+    private int countSteps(long from, long to) {
+        int steps = 0;
+        for (long position = from; position < to; position++) {
+            if (kindOf(entryAt(position)) == stepEnd)
+                steps++;
         }
+        return steps;
     }
 
-    // Exit the program when user clicks on final game win screen.
-    class GameWinTwoListener implements ActionListener {
-
-        @Override
-        public void actionPerformed(ActionEvent e) {
-            System.exit(0);
+    // Writes an entry at the cursor, dropping the oldest steps to make
+    // room. The open step is never dropped in part: if it fills the
+    // buffer by itself, the rest of it is skipped and endStep clears it.
+    private void append(long entry) {
+        if (capacity == 0 || stepDropped) {
+            stepDropped = true;
+            return;
         }
+        if (entries == null)
+            entries = new long[capacity];
+        if (cursor - oldest == capacity) {
+            if (oldest == openStepStart) {
+                stepDropped = true;
+                return;
+            }
+            do {
+                oldest++;
+            } while (oldest < openStepStart && kindOf(entryAt(oldest)) != stepStart);
+        }
+        entries[(int) (cursor % capacity)] = entry;
+        cursor++;
+        newest = cursor;
     }
 
-}
+    private long entryAt(long position) {
+        return entries[(int) (position % capacity)];
+    }
 
-/**
- * Main JFrame that houses the game GUI.
- * The game view has a reference to it and
- * uses it to represent the game state.
- */
-class GameWindow extends JFrame {
+    private static long entry(int kind, long payload) {
+        return ((long) kind << 60) | (payload & 0x0FFFFFFFFFFFFFFFL);
+    }
 
-    private JButton buttonScreen;
-    private JPanel gameScreen;
+    private static int bits(long entry, int shift, int width) {
+        return (int) ((entry >>> shift) & ((1L << width) - 1));
+    }
 
-    /**
-     * Default constructor
-     */
-    public GameWindow () {
-        initGameWindow();
+    private static int signedBits(long entry, int shift, int width) {
+        return (int) ((entry << (64 - shift - width)) >> (64 - width));
     }
 
-    // Called by the constructor to setup the initial frame state.
-    private void initGameWindow () {
-        // Change to look and feel of local machine.
-        try {UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());}
-        catch(UnsupportedLookAndFeelException |
-            ClassNotFoundException |
-            InstantiationException |
-            IllegalAccessException ignore){}
-        setLayout(new BorderLayout());
-        setSize(ChelonTwoMain.windowSide, ChelonTwoMain.windowSide);
-        setIconImage(new ImageIcon(ImageLoader.frameIconImage).getImage());
-        setTitle("Nocturne of Dusk");
-        buttonScreen = new JButton();
-        buttonScreen = setButtonScreen(ImageLoader.imageToAdd(ImageLoader.titleScreenImage));
-        add(buttonScreen);
-        setLocationRelativeTo(null);
-        setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+    public static int kindOf(long entry) {
+        return (int) (entry >>> 60);
+    }
 
+    // Methods that pack each kind of change.
+    public static long monsterMoved(int fromTile, int toTile) {
+        return entry(monsterMoved, ((long) fromTile << tileBits) | toTile);
     }
 
-    // Creates a JButton that will serve as title and ending screens.
-    public JButton setButtonScreen(JLabel image) {
-        buttonScreen = new JButton();
-        buttonScreen.setBorder(BorderFactory.createEmptyBorder());
-        buttonScreen.setOpaque(false);
-        buttonScreen.setContentAreaFilled(false);
-        buttonScreen.setBorderPainted(false);
-        buttonScreen.setFocusPainted(false);
-        buttonScreen.add(image, BorderLayout.CENTER);
-        return buttonScreen;
+    public static long monsterHealth(int tile, int before, int after) {
+        long mask = (1L << healthBits) - 1;
+        return entry(monsterHealth, ((long) tile << tileBits) | ((before & mask) << healthBits) | (after & mask));
     }
 
-    public JButton getButtonScreen() {
-        return buttonScreen;
+    public static long monsterRemoved(int tile, int typeId, int health) {
+        return entry(monsterRemoved, ((long) tile << tileBits) | ((long) (typeId & 0x3FFF) << 16) | (health & 0xFFFF));
     }
 
-    // Creates a JPanel for the game screen where play takes place.
-    // The game background is painted directly onto the panel.
-    public JPanel setGameScreen(BufferedImage image) {
-        if (image == null)
-            System.out.println("Failed to load Game Screen");
-        gameScreen = new JPanel() {
-            public void paintComponent(Graphics g) {
-                super.paintComponent(g);
-                g.drawImage(image, 0, 0, ChelonTwoMain.windowSide, ChelonTwoMain.windowSide, this);
-            }
-        };
-        // Setup layout for the game tiles.
-        gameScreen.setLayout(new GridLayout(8, 8));
-        return gameScreen;
+    public static long levelChanged(int from, int to) {
+        return entry(levelChanged, ((long) from << 16) | (to & 0xFFFF));
     }
 
-    public JPanel getGameScreen() {
-        return gameScreen;
+    public static long turnEnded() {
+        return entry(turnEnded, 0);
+    }
+
+    // Damage dealt to the player by the monster on the tile. The
+    // player's health comes back with the step's player state; this
+    // is kept so what happened can be told again.
+    public static long playerHit(int tile, int damage) {
+        return entry(playerHit, ((long) tile << tileBits) | (damage & 0xFFFF));
+    }
+
+    // A monster acting on the given tick of a turn with the energy
+    // it had saved up.
+    public static long monsterActed(int tile, int energy, int tickOffset) {
+        return entry(monsterActed, ((long) tile << tileBits) | ((long) (energy & 0xFFFF) << 14) | (tickOffset & 0x3FFF));
+    }
+
+    public static long playerState(int x, int y, int health, int moves, boolean attacked) {
+        return ((long) (x & 0xFFFF) << 39) | ((long) (y & 0xFFFF) << 23) | ((long) (health & 0xFFF) << 11)
+            | ((moves & 0x3FF) << 1) | (attacked ? 1 : 0);
+    }
+
+    // Methods that unpack them again.
+    public static int firstTile(long entry) {
+        return bits(entry, tileBits, tileBits);
+    }
+
+    public static int secondTile(long entry) {
+        return bits(entry, 0, tileBits);
+    }
+
+    public static int healthBefore(long entry) {
+        return signedBits(entry, healthBits, healthBits);
+    }
+
+    public static int healthAfter(long entry) {
+        return signedBits(entry, 0, healthBits);
+    }
+
+    public static int removedType(long entry) {
+        return bits(entry, 16, 14);
+    }
+
+    public static int removedHealth(long entry) {
+        return signedBits(entry, 0, 16);
     }
 
+    public static int hitDamage(long entry) {
+        return signedBits(entry, 0, 16);
+    }
+
+    public static int actedEnergy(long entry) {
+        return bits(entry, 14, 16);
+    }
+
+    public static int actedTickOffset(long entry) {
+        return bits(entry, 0, 14);
+    }
+
+    public static int levelFrom(long entry) {
+        return bits(entry, 16, 16);
+    }
+
+    public static int levelTo(long entry) {
+        return bits(entry, 0, 16);
+    }
+
+    public static int playerX(long state) {
+        return bits(state, 39, 16);
+    }
+
+    public static int playerY(long state) {
+        return bits(state, 23, 16);
+    }
+
+    public static int playerHealth(long state) {
+        return signedBits(state, 11, 12);
+    }
+
+    public static int playerMoves(long state) {
+        return bits(state, 1, 10);
+    }
+
+    public static boolean playerAttacked(long state) {
+        return (state & 1) != 0;
+    }
 }
 
 /**
- * Class that holds the positioning of all
- * monsters on the game board. Player is not included.
+ * Kinds of events the model publishes on the event bus.
  */
-class GameBoard {
+enum GameEventType {
+    PLAYER_HIT,
+    ENEMY_HIT,
+    MONSTER_DIED,
+    LEVEL_ADVANCED,
+    GAME_OVER,
+    GAME_WON,
+    PLAYER_MOVED,
+    TURN_ENDED,
+    // Hits and kills taken back by a rewind or made again by a replay.
+    PLAYER_HIT_UNDONE,
+    PLAYER_HIT_REDONE,
+    MONSTER_DIED_UNDONE,
+    MONSTER_DIED_REDONE,
+    // Steps of the history undone or redone, once per rewind or replay.
+    HISTORY_REWOUND,
+    HISTORY_REPLAYED
+}
 
-    // Hash map - Key is the character coordinates as a string,
-    // value is the character itself.
-    private Map<String, GameCharacter> characters = new HashMap<>();
-    private int numberOfMonsters;
+/**
+ * Callback used by consumers to receive events.
+ * Coordinates are where the event happened; value is the damage
+ * dealt, the type id of the monster that died, the level reached, the
+ * player's moves left, the turns taken or the steps rewound or
+ * replayed, depending on the type.
+ */
+interface GameEventListener {
+    void onEvent(GameEventType type, int x, int y, int value);
+}
+
+/**
+ * Single-producer ring buffer the model publishes game events to.
+ * Slots are preallocated and each event is packed into one long, so
+ * publishing never allocates and never waits on a consumer.
+ * Each consumer keeps its own position and reads at its own pace.
+ * A consumer that falls more than a full ring behind skips ahead
+ * and counts the events it missed. A consumer on its own thread can
+ * park until the next event instead of polling; publishing only
+ * unparks it, so it still never waits.
+ */
+class GameEventBus {
+
+    public static final int defaultCapacity = 1024;
+    // Sequence stored in a slot while the producer is rewriting it.
+    private static final long writing = -1;
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray events;
+    private final AtomicLong cursor = new AtomicLong(-1);
+    private long nextSequence = 0;
+    // Threads that have waited for events, unparked on every publish.
+    // Replaced whole when one is added, so publish reads it without
+    // locking or allocating.
+    private volatile Thread[] waiters = new Thread[0];
 
     /**
-     * Constructor that takes an array and calls the fill method.
-     * @param startSpawns an array of starting monsters
+     * Constructor
+     * @param capacity number of slots, rounded up to a power of two.
      */
-    public GameBoard (ArrayList<GameCharacter> startSpawns) {
-        fillCharacters(startSpawns);
-        numberOfMonsters = characters.size();
+    public GameEventBus(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        events = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, writing);
     }
 
-    // Fills a hash map with the characters from the given array.
-    private void fillCharacters(ArrayList<GameCharacter> startSpawns) {
-        for (GameCharacter character : startSpawns) {
-            characters.put(coordsAsString(character.getCoords()), character);
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    // Only the model's thread may publish.
+    public void publish(GameEventType type, int x, int y, int value) {
+        long sequence = nextSequence++;
+        int index = (int) (sequence & mask);
+        sequences.set(index, writing);
+        events.set(index, pack(type, x, y, value));
+        sequences.set(index, sequence);
+        cursor.set(sequence);
+        for (Thread waiter : waiters)
+            LockSupport.unpark(waiter);
+    }
+
+    // Parks the calling thread until an event after the given sequence
+    // has been published. The thread is registered before the cursor
+    // is checked, so a publish in between still unparks it.
+    void awaitAfter(long sequence) {
+        Thread current = Thread.currentThread();
+        addWaiter(current);
+        while (cursor.get() <= sequence && !current.isInterrupted())
+            LockSupport.park(this);
+    }
+
+    private synchronized void addWaiter(Thread thread) {
+        Thread[] current = waiters;
+        for (Thread waiter : current) {
+            if (waiter == thread)
+                return;
         }
+        Thread[] added = Arrays.copyOf(current, current.length + 1);
+        added[current.length] = thread;
+        waiters = added;
     }
 
-    // Methods that format coordinates between an int array and
-    // and a string with the numbers concatenated.
-    public String coordsAsString (int[] coords) {
-        if (coords.length != 2)
-            throw new ArrayIndexOutOfBoundsException();
-        String stringX = Integer.toString(coords[0]);
-        String stringY = Integer.toString(coords[1]);
-        return stringX + stringY;
+    // New consumers start with the next event published.
+    public GameEventConsumer subscribe() {
+        return new GameEventConsumer(this, cursor.get() + 1);
     }
 
-    public int[] coordsAsInts (String coords) {
-        return new int[] {Character.getNumericValue(coords.charAt(0)),
-            Character.getNumericValue(coords.charAt(1))};
+    long getCursor() {
+        return cursor.get();
     }
 
-    // Get the character at a given location.
-    public GameCharacter getCharacterAtCoords(int x, int y) {
-        String coords = coordsAsString(new int[] {x, y});
-        return characters.get(coords);
+    long getSequence(int index) {
+        return sequences.get(index);
     }
 
-    public boolean isOccupied(int x, int y) {
-        return characters.containsKey(coordsAsString(new int[] {x, y}));
+    long getEvent(int index) {
+        return events.get(index);
     }
 
-    public boolean isOpen(int x, int y) {
-        return !characters.containsKey(coordsAsString(new int[] {x, y}));
+    int indexOf(long sequence) {
+        return (int) (sequence & mask);
     }
 
-    public int getNumberOfMonsters() {
-        return numberOfMonsters;
+    // Layout: type in the top 8 bits, then 16 bits each of x and y,
+    // then 24 bits of value.
+    private static long pack(GameEventType type, int x, int y, int value) {
+        return ((long) type.ordinal() << 56)
+            | ((long) (x & 0xFFFF) << 40)
+            | ((long) (y & 0xFFFF) << 24)
+            | (value & 0xFFFFFFL);
     }
 
-    public void removeMonster(int x, int y) {
-        numberOfMonsters--;
-        characters.remove(coordsAsString(new int[]{x, y}));
+    static GameEventType unpackType(long event) {
+        return GameEventType.values()[(int) (event >>> 56)];
     }
 
-    // Updates the character keys (coordinates) in the hash map
-    // based on their current coordinates (if they have moved).
-    public void resetBoard() {
-        Map<String, GameCharacter> updatedBoard = new HashMap<>();
-        for (GameCharacter character : characters.values())
-            updatedBoard.put(coordsAsString(character.getCoords()), character);
-        characters = updatedBoard;
+    static int unpackX(long event) {
+        return (int) ((event >>> 40) & 0xFFFF);
     }
 
-    public Map<String, GameCharacter> getBoard() {
-        return characters;
+    static int unpackY(long event) {
+        return (int) ((event >>> 24) & 0xFFFF);
     }
 
+    static int unpackValue(long event) {
+        return (int) (event & 0xFFFFFF);
+    }
 }
 
 /**
- * Class that generates the levels of gameplay.
- * Spawn points are predetermined and shuffled to allow
- * for variance in level creation.
+ * A reader of the event bus. Each consumer belongs to one thread.
  */
-class LevelCreator {
+class GameEventConsumer {
 
-    private static int startingMonsters = 3;
-    private static int monsterIncrease = 1;
-    private static int maxMonsters = 8;
-    private static int mothFrequency = 75;
-    private static int wightFrequency = 100 - mothFrequency;
-    private static ArrayList<int[]> spawnLocations = new ArrayList<int[]>() {{
-        add(new int[]{1, 1});
+    private final GameEventBus bus;
+    private long nextSequence;
+    private long missedEvents;
+
+    public GameEventConsumer(GameEventBus bus, long startSequence) {
+        this.bus = bus;
+        this.nextSequence = startSequence;
+    }
+
+    // Hands every event published since the last poll to the listener.
+    // Returns the number of events delivered.
+    public int poll(GameEventListener listener) {
+        int delivered = 0;
+        long available = bus.getCursor();
+        while (nextSequence <= available) {
+            // Skip whatever the producer has already written over.
+            long oldest = bus.getCursor() - bus.getCapacity() + 1;
+            if (nextSequence < oldest) {
+                missedEvents += oldest - nextSequence;
+                nextSequence = oldest;
+            }
+            int index = bus.indexOf(nextSequence);
+            long event = bus.getEvent(index);
+            if (bus.getSequence(index) != nextSequence)
+                continue;
+            listener.onEvent(GameEventBus.unpackType(event), GameEventBus.unpackX(event),
+                GameEventBus.unpackY(event), GameEventBus.unpackValue(event));
+            nextSequence++;
+            delivered++;
+        }
+        return delivered;
+    }
+
+    // Same as poll, but if nothing new has been published it parks
+    // the calling thread until something is, then delivers that.
+    // Returns without delivering if the thread is interrupted.
+    public int pollOrWait(GameEventListener listener) {
+        int delivered = poll(listener);
+        if (delivered > 0)
+            return delivered;
+        bus.awaitAfter(nextSequence - 1);
+        return poll(listener);
+    }
+
+    public long getMissedEvents() {
+        return missedEvents;
+    }
+}
+
+/**
+ * The game view handles the GUI of the game:
+ * Loading screens and updating sprites as
+ * the game progresses.
+ * During the game proper, creates an array of JButtons
+ * that serve as "tiles" where the sprite icons are placed.
+ */
+class GameView extends JFrame {
+
+    private static final int tilesPerRow = 8;
+    private GameModel gameModel;
+    private GameWindow gameWindow;
+    private JButton[][] gameTiles;
+    private SpriteAnimator spriteAnimator;
+    private SpriteCache spriteCache;
+    private LightMap lightMap;
+    // Board the light map was last placed from.
+    private GameBoard lightBoard;
+    private RenderLoop renderLoop;
+    private boolean showingGame;
+    private GameEventConsumer gameEvents;
+
+    /**
+     * Constructor that initializes a game window object
+     * and the game tiles array.
+     * @param gameModel holds an instance to the model.
+     */
+    public GameView (GameModel gameModel) {
+        this.gameModel = gameModel;
+        gameWindow = new GameWindow();
+        spriteCache = new SpriteCache(SpriteCache.defaultZoomLevels, this::variantReady);
+        spriteAnimator = new SpriteAnimator(spriteCache);
+        lightMap = new LightMap(gameModel.getGameBoard().getWidth(), gameModel.getGameBoard().getHeight());
+        gameEvents = gameModel.getEventBus().subscribe();
+
+        gameTiles = new JButton[tilesPerRow][tilesPerRow];
+        setGameTiles();
+    }
+
+    public GameWindow getGameWindow() {
+        return gameWindow;
+    }
+
+    // The tile button at the given coordinates, which carries the
+    // controller's tile listener once it has been received.
+    public JButton getGameTile(int x, int y) {
+        return gameTiles[x][y];
+    }
+
+    // Frame times of the game screen, for tuning.
+    // Null until the game screen has been shown.
+    public FrameStats getFrameStats() {
+        return (renderLoop == null) ? null : renderLoop.getFrameStats();
+    }
+
+    // For each tile in the array, initialize a new
+    // JButton and set its attributes so that it will
+    // be transparent expect for the icon placed on it.
+    private void setGameTiles() {
+        for (int i = 0; i < tilesPerRow; i++) {
+            for (int j = 0; j < tilesPerRow; j++) {
+                gameTiles[i][j] = new JButton();
+                gameTiles[i][j].setOpaque(false);
+                gameTiles[i][j].setBorder(BorderFactory.createEmptyBorder());
+                gameTiles[i][j].setContentAreaFilled(false);
+                gameTiles[i][j].setBorderPainted(false);
+                gameTiles[i][j].setFocusPainted(false);
+            }
+        }
+    }
+
+    // Removes the title screen and adds a the instructions as a new
+    // JButton with a listener.
+    public void switchToInstructions(ActionListener actionListener) {
+        gameWindow.remove(gameWindow.getButtonScreen());
+        JButton instructions = gameWindow.setButtonScreen(ImageLoader.imageToAdd(ImageLoader.instructionScreenImage));
+        gameWindow.getButtonScreen().addActionListener(actionListener);
+        gameWindow.add(instructions, BorderLayout.CENTER);
+        gameWindow.revalidate();
+        gameWindow.repaint();
+
+    }
+
+    // Removes instructions and adds the game JPanel to the frame.
+    // Adds the game tiles to the JPanel that was just created
+    // and starts the render loop that animates the sprites.
+    public void switchToGame() {
+        gameWindow.remove(gameWindow.getButtonScreen());
+        renderLoop = new RenderLoop(spriteAnimator);
+        JPanel game = gameWindow.setGameScreen(ImageLoader.getImageAsBuffered(ImageLoader.gameScreenImage),
+            spriteAnimator, lightMap, renderLoop);
+        gameWindow.add(game, BorderLayout.CENTER);
+        addGameTilesToGame(gameWindow.getGameScreen());
+        // Sprites and hearts are sized to the tiles, so they follow the
+        // window size. The first resize is the initial layout, when the
+        // real tile size is known.
+        game.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                prepareSprites();
+                updatePlayerHealth();
+            }
+        });
+        updateLights();
+        renderLoop.start(game);
+        showingGame = true;
+        gameWindow.revalidate();
+        gameWindow.repaint();
+    }
+
+    private void stopRenderLoop() {
+        if (renderLoop != null)
+            renderLoop.stop();
+        showingGame = false;
+    }
+
+    // True while the board is on screen rather than a title or end screen.
+    public boolean isShowingGame() {
+        return showingGame;
+    }
+
+    // Side of a tile on screen. Falls back to the standard size
+    // before the game screen has been laid out.
+    private int tileSize() {
+        JPanel gameScreen = gameWindow.getGameScreen();
+        if (gameScreen == null || gameScreen.getWidth() == 0)
+            return SpriteCache.artTileSize;
+        return Math.min(gameScreen.getWidth(), gameScreen.getHeight()) / tilesPerRow;
+    }
+
+    // Starts building the sprites and hearts for the current tile
+    // size in the background, ahead of their first paint at that size.
+    // Does nothing until the game screen has been laid out.
+    private void prepareSprites() {
+        JPanel gameScreen = gameWindow.getGameScreen();
+        if (gameScreen == null || gameScreen.getWidth() == 0)
+            return;
+        int tileSize = tileSize();
+        for (ImageIcon sprite : SpriteGenerator.spriteList.values())
+            spriteCache.get(sprite.getImage(), tileSize);
+        for (int health = 1; health <= Player.playerType.getMaxHealth(); health++)
+            spriteCache.get(ImageLoader.getPlayerHeartsImage(health), tileSize);
+    }
+
+    // Called on the EDT when a scaled sprite or heart icon has been
+    // built, so it replaces the stand-in drawn until now.
+    private void variantReady() {
+        if (gameWindow.getGameScreen() == null)
+            return;
+        updatePlayerHealth();
+        gameWindow.getGameScreen().repaint();
+    }
+
+    // Each game tile JButton is added to the JPanel passed
+    // in as a parameter.
+    private void addGameTilesToGame (JPanel gameScreen) {
+        for (int i = 0; i < tilesPerRow; i++) {
+            for (int j = 0; j < tilesPerRow; j++) {
+                gameScreen.add(gameTiles[i][j]);
+            }
+        }
+    }
+
+    // Listener methods
+    public void receiveTitleSwitchListener(ActionListener actionListener) {
+        gameWindow.getButtonScreen().addActionListener(actionListener);
+    }
+
+    // Ctrl+Z steps back through the game's history and Ctrl+Y forward.
+    public void receiveHistoryActions(Action rewindAction, Action replayAction) {
+        JRootPane rootPane = gameWindow.getRootPane();
+        rootPane.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("ctrl Z"), "rewind");
+        rootPane.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("ctrl Y"), "replay");
+        rootPane.getActionMap().put("rewind", rewindAction);
+        rootPane.getActionMap().put("replay", replayAction);
+    }
+
+    public void receiveGameTileListener(ActionListener actionListener) {
+        for (int i = 0; i < tilesPerRow; i++) {
+            for (int j = 0; j < tilesPerRow; j++) {
+                gameTiles[i][j].addActionListener(actionListener);
+                gameTiles[i][j].setActionCommand(Integer.toString(i) + j);
+            }
+        }
+    }
+
+    // Tells the animator where the player's sprite should be.
+    // The render loop slides it there from where it was.
+    public void drawPlayer(Player player) {
+        spriteAnimator.showSprite(player, player.getSprite(), player.getXPos(), player.getYPos());
+    }
+
+    // Same as above for each of the given monsters, which should be
+    // the ones the player can see.
+    public void drawMonsters(ArrayList<GameCharacter> monsters) {
+        for (GameCharacter monster : monsters)
+            spriteAnimator.showSprite(monster, monster.getSprite(), monster.getXPos(), monster.getYPos());
+    }
+
+    // Flashes tiles that were hit since the last update, then draws
+    // the player and monsters at their current positions. Sprites of
+    // characters that died or went out of sight are dropped.
+    public void updateBoard() {
+        gameEvents.poll(new HitFlashHandler());
+        spriteAnimator.beginUpdate();
+        drawPlayer(gameModel.getPlayer());
+        drawMonsters(gameModel.getVisibleMonsters());
+        spriteAnimator.endUpdate();
+        updateLights();
+        if (gameWindow.getGameScreen() != null)
+            gameWindow.getGameScreen().repaint();
+    }
+
+    // Moves the light sources to where the player and the glowing
+    // monsters are now. Only monsters the board reports as moved,
+    // added or removed are looked at; a new board places every light.
+    private void updateLights() {
+        GameBoard board = gameModel.getGameBoard();
+        if (board != lightBoard) {
+            lightBoard = board;
+            board.setTrackingChanges(true);
+            lightMap.clearLights();
+            for (GameCharacter monster : board.getBoard())
+                placeLight(monster);
+        }
+        else {
+            for (GameCharacter monster : board.takeChangedCharacters())
+                placeLight(monster);
+        }
+        Player player = gameModel.getPlayer();
+        lightMap.setLight(player, player.getXPos(), player.getYPos(),
+            player.getType().getLightRadius(), LightMap.maxLight);
+        lightMap.update();
+    }
+
+    // Lights a glowing monster where it stands, or puts its light out
+    // if it has left the board.
+    private void placeLight(GameCharacter monster) {
+        int radius = monster.getType().getLightRadius();
+        int x = monster.getXPos();
+        int y = monster.getYPos();
+        if (radius > 0 && lightBoard.getCharacterAtCoords(x, y) == monster)
+            lightMap.setLight(monster, x, y, radius, LightMap.glowLight);
+        else
+            lightMap.removeLight(monster);
+    }
+
+    // Flashes the tile of whoever was hit.
+    class HitFlashHandler implements GameEventListener {
+
+        @Override
+        public void onEvent(GameEventType type, int x, int y, int value) {
+            if (type == GameEventType.ENEMY_HIT)
+                spriteAnimator.flashTile(x, y);
+            else if (type == GameEventType.PLAYER_HIT)
+                spriteAnimator.flashTile(gameModel.getPlayer().getXPos(), gameModel.getPlayer().getYPos());
+        }
+    }
+
+    // Following methods reset the JFrame and sets up a new screen
+    // depending on game outcome. Screens are JButtons that have
+    // listeners for on-click actions.
+    public void switchToGameOver(ActionListener actionListener) {
+        stopRenderLoop();
+        gameWindow.getContentPane().removeAll();
+        JButton gameOver = gameWindow.setButtonScreen(ImageLoader.imageToAdd(ImageLoader.gameOverScreenImage));
+        gameWindow.getButtonScreen().addActionListener(actionListener);
+        gameWindow.add(gameOver, BorderLayout.CENTER);
+        gameWindow.revalidate();
+        gameWindow.repaint();
+    }
+
+    public void switchToGameWin(ActionListener actionListener) {
+        stopRenderLoop();
+        gameWindow.getContentPane().removeAll();
+        JButton gameWin = gameWindow.setButtonScreen(ImageLoader.imageToAdd(ImageLoader.gameWinScreenOneImage));
+        gameWindow.getButtonScreen().addActionListener(actionListener);
+        gameWindow.add(gameWin, BorderLayout.CENTER);
+        gameWindow.revalidate();
+        gameWindow.repaint();
+    }
+
+    public void switchToGameWinTwo(ActionListener actionListener) {
+        stopRenderLoop();
+        gameWindow.getContentPane().removeAll();
+        JButton gameWin = gameWindow.setButtonScreen(ImageLoader.imageToAdd(ImageLoader.gameWinScreenTwoImage));
+        gameWindow.getButtonScreen().addActionListener(actionListener);
+        gameWindow.add(gameWin, BorderLayout.CENTER);
+        gameWindow.revalidate();
+        gameWindow.repaint();
+    }
+
+    // Updates the heart sprites in the top-left corner.
+    // Actually two instances of the same sprite, first half
+    // showing on first tile and second half on the second.
+    public void updatePlayerHealth() {
+        // Guard block - player out of health.
+        if (gameModel.getPlayer().getHealth() < 1)
+            return;
+        // Align the icons. Left-side for the left and vice-versa.
+        // Creates borders so the two halves align to look like a whole.
+        // Borders and icon are scaled from the standard tile size.
+        int tileSize = tileSize();
+        gameTiles[0][0].setHorizontalAlignment(JLabel.LEFT);
+        gameTiles[0][0].setBorder(new EmptyBorder(0, SpriteCache.scaled(11, tileSize),
+            SpriteCache.scaled(75, tileSize), SpriteCache.scaled(17, tileSize)));
+        gameTiles[0][1].setHorizontalAlignment(JLabel.RIGHT);
+        gameTiles[0][1].setBorder(new EmptyBorder(0, 0, SpriteCache.scaled(75, tileSize), SpriteCache.scaled(6, tileSize)));
+        // Until the scaled hearts are built, the original ones stand in.
+        Image hearts = ImageLoader.getPlayerHeartsImage(gameModel.getPlayer().getHealth());
+        Image scaledHearts = spriteCache.get(hearts, tileSize);
+        ImageIcon heartsIcon = new ImageIcon((scaledHearts != null) ? scaledHearts : hearts);
+        gameTiles[0][0].setIcon(heartsIcon);
+        gameTiles[0][1].setIcon(heartsIcon);
+    }
+
+}
+
+/**
+ * Keeps the on-screen position of every sprite on the game screen
+ * and slides each one from its previous tile to its current tile.
+ * The model still moves characters a whole tile at a time; this only
+ * affects drawing. Also fades out a red flash on tiles that were hit.
+ * Used only on the EDT.
+ */
+class SpriteAnimator {
+
+    // How long a one-tile move and a hit flash take on screen.
+    public static final long moveNanos = 150_000_000L;
+    public static final long flashNanos = 250_000_000L;
+    private static final int flashAlpha = 140;
+
+    private final Map<Object, AnimatedSprite> sprites = new IdentityHashMap<>();
+    private final ArrayList<TileFlash> flashes = new ArrayList<>();
+    private final Set<Object> shown = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final SpriteCache spriteCache;
+
+    /**
+     * Constructor
+     * @param spriteCache source of sprites scaled to the tile size.
+     */
+    public SpriteAnimator(SpriteCache spriteCache) {
+        this.spriteCache = spriteCache;
+    }
+
+    // Marks the start of a full board update. Sprites not shown again
+    // before endUpdate are removed.
+    public void beginUpdate() {
+        shown.clear();
+    }
+
+    public void endUpdate() {
+        sprites.keySet().retainAll(shown);
+    }
+
+    // Moves the sprite belonging to the owner to the given tile,
+    // starting from wherever it is currently drawn.
+    public void showSprite(Object owner, ImageIcon icon, int x, int y) {
+        long now = System.nanoTime();
+        shown.add(owner);
+        AnimatedSprite sprite = sprites.get(owner);
+        if (sprite == null)
+            sprites.put(owner, new AnimatedSprite(icon, x, y, now));
+        else
+            sprite.moveTo(icon, x, y, now);
+    }
+
+    public void flashTile(int x, int y) {
+        flashes.add(new TileFlash(x, y, System.nanoTime()));
+    }
+
+    // True while any sprite is moving or any tile is flashing.
+    public boolean isAnimating(long now) {
+        for (AnimatedSprite sprite : sprites.values()) {
+            if (sprite.isMoving(now))
+                return true;
+        }
+        return !flashes.isEmpty();
+    }
+
+    // Draws every sprite at its position for the given time, sized
+    // to the tiles. Sprites whose scaled copy isn't built yet are
+    // scaled as they are drawn for the time being.
+    // Model x is the tile row and y the column, as with the tile buttons.
+    public void paint(Graphics g, JComponent screen, long now) {
+        int tileWidth = screen.getWidth() / GameBoard.boardSide;
+        int tileHeight = screen.getHeight() / GameBoard.boardSide;
+        int tileSize = Math.min(tileWidth, tileHeight);
+        for (AnimatedSprite sprite : sprites.values()) {
+            ImageIcon icon = sprite.getIcon();
+            if (icon == null)
+                continue;
+            int width = SpriteCache.scaled(icon.getIconWidth(), tileSize);
+            int height = SpriteCache.scaled(icon.getIconHeight(), tileSize);
+            double progress = sprite.progress(now);
+            double row = sprite.getFromX() + (sprite.getToX() - sprite.getFromX()) * progress;
+            double column = sprite.getFromY() + (sprite.getToY() - sprite.getFromY()) * progress;
+            int left = (int) Math.round(column * tileWidth) + (tileWidth - width) / 2;
+            int top = (int) Math.round(row * tileHeight) + (tileHeight - height) / 2;
+            Image scaled = spriteCache.get(icon.getImage(), tileSize);
+            if (scaled != null)
+                g.drawImage(scaled, left, top, screen);
+            else
+                g.drawImage(icon.getImage(), left, top, width, height, screen);
+        }
+        flashes.removeIf(flash -> now - flash.getStartNanos() > flashNanos);
+        for (TileFlash flash : flashes) {
+            int alpha = (int) (flashAlpha * (1 - (double) (now - flash.getStartNanos()) / flashNanos));
+            g.setColor(new Color(200, 0, 0, Math.max(0, alpha)));
+            g.fillRect(flash.getY() * tileWidth, flash.getX() * tileHeight, tileWidth, tileHeight);
+        }
+    }
+}
+
+/**
+ * Per-tile light levels for the crypt, computed on the CPU.
+ * Light comes from sources (the player and glowing monsters) and fades
+ * with distance. Levels are cached. The board is split into square
+ * chunks, and each chunk knows which sources reach it. When a source
+ * is placed, moved or removed, only the chunks it reached and now
+ * reaches are recomputed, each from its own sources, so the cost
+ * depends on how many lights changed rather than how far apart they
+ * are or how large the board is.
+ * The cached levels are kept as a one-pixel-per-tile shade image that
+ * is stretched over the screen with a single smoothed draw per frame.
+ */
+class LightMap {
+
+    public static final int maxLight = 255;
+    public static final int glowLight = 140;
+    // Light everywhere, even far from any source.
+    public static final int ambientLight = 45;
+    // Side of the chunks the board is recomputed in, in tiles.
+    public static final int chunkSide = 16;
+    // Darkness drawn over a tile with no light beyond ambient.
+    private static final int maxShade = 235;
+
+    private final int width;
+    private final int height;
+    private final int chunksAcross;
+    private final int[] intensity;
+    private final BufferedImage shade;
+    private final Map<Object, LightSource> sources = new IdentityHashMap<>();
+    // Sources reaching each chunk; null where none do.
+    private final ArrayList<ArrayList<LightSource>> chunkSources;
+    private final BitSet dirtyChunks = new BitSet();
+    private long tilesRecomputed;
+
+    /**
+     * Constructor
+     * @param width tiles per row of the board.
+     * @param height tiles per column of the board.
+     */
+    public LightMap(int width, int height) {
+        this.width = width;
+        this.height = height;
+        chunksAcross = (width + chunkSide - 1) / chunkSide;
+        int chunks = chunksAcross * ((height + chunkSide - 1) / chunkSide);
+        chunkSources = new ArrayList<>(Collections.nCopies(chunks, null));
+        intensity = new int[width * height];
+        shade = new BufferedImage(height, width, BufferedImage.TYPE_INT_ARGB);
+        dirtyChunks.set(0, chunks);
+        update();
+    }
+
+    // Places or moves the light source belonging to the owner.
+    public void setLight(Object owner, int x, int y, int radius, int strength) {
+        LightSource source = sources.get(owner);
+        if (source == null) {
+            source = new LightSource(x, y, radius, strength);
+            sources.put(owner, source);
+            attach(source);
+        }
+        else if (source.getX() != x || source.getY() != y || source.getRadius() != radius
+            || source.getStrength() != strength) {
+            detach(source);
+            source.set(x, y, radius, strength);
+            attach(source);
+        }
+    }
+
+    public void removeLight(Object owner) {
+        LightSource source = sources.remove(owner);
+        if (source != null)
+            detach(source);
+    }
+
+    public void clearLights() {
+        for (LightSource source : sources.values())
+            detach(source);
+        sources.clear();
+    }
+
+    // Recomputes the chunks whose light changed since the last update.
+    public void update() {
+        for (int chunk = dirtyChunks.nextSetBit(0); chunk >= 0; chunk = dirtyChunks.nextSetBit(chunk + 1))
+            recompute(chunk);
+        dirtyChunks.clear();
+    }
+
+    // Light level of a tile, from ambient to maxLight.
+    public int getIntensity(int x, int y) {
+        return intensity[y * width + x];
+    }
+
+    public long getTilesRecomputed() {
+        return tilesRecomputed;
+    }
+
+    // Draws the darkness over the top-left tiles of the board that
+    // fit on screen. Model x is the tile row and y the column.
+    public void paint(Graphics g, int screenWidth, int screenHeight, int tilesAcross, int tilesDown) {
+        Graphics2D g2 = (Graphics2D) g.create();
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.drawImage(shade, 0, 0, screenWidth, screenHeight, 0, 0,
+            Math.min(tilesAcross, height), Math.min(tilesDown, width), null);
+        g2.dispose();
+    }
+
+    // Adds the source to every chunk it reaches and marks them dirty.
+    private void attach(LightSource source) {
+        int[] chunks = chunksReached(source);
+        for (int chunkY = chunks[1]; chunkY <= chunks[3]; chunkY++) {
+            for (int chunkX = chunks[0]; chunkX <= chunks[2]; chunkX++) {
+                int chunk = chunkY * chunksAcross + chunkX;
+                if (chunkSources.get(chunk) == null)
+                    chunkSources.set(chunk, new ArrayList<>(2));
+                chunkSources.get(chunk).add(source);
+                dirtyChunks.set(chunk);
+            }
+        }
+    }
+
+    // Same as above, taking the source out.
+    private void detach(LightSource source) {
+        int[] chunks = chunksReached(source);
+        for (int chunkY = chunks[1]; chunkY <= chunks[3]; chunkY++) {
+            for (int chunkX = chunks[0]; chunkX <= chunks[2]; chunkX++) {
+                int chunk = chunkY * chunksAcross + chunkX;
+                ArrayList<LightSource> reaching = chunkSources.get(chunk);
+                if (reaching != null) {
+                    reaching.remove(source);
+                    if (reaching.isEmpty())
+                        chunkSources.set(chunk, null);
+                }
+                dirtyChunks.set(chunk);
+            }
+        }
+    }
+
+    // First and last chunk along each axis within the source's reach.
+    private int[] chunksReached(LightSource source) {
+        int radius = source.getRadius();
+        return new int[] {
+            Math.max(0, source.getX() - radius) / chunkSide,
+            Math.max(0, source.getY() - radius) / chunkSide,
+            Math.min(width - 1, source.getX() + radius) / chunkSide,
+            Math.min(height - 1, source.getY() + radius) / chunkSide
+        };
+    }
+
+    // Recomputes one chunk from the sources that reach it.
+    private void recompute(int chunk) {
+        ArrayList<LightSource> reaching = chunkSources.get(chunk);
+        int firstX = (chunk % chunksAcross) * chunkSide;
+        int firstY = (chunk / chunksAcross) * chunkSide;
+        int lastX = Math.min(width, firstX + chunkSide);
+        int lastY = Math.min(height, firstY + chunkSide);
+        for (int x = firstX; x < lastX; x++) {
+            for (int y = firstY; y < lastY; y++) {
+                int light = ambientLight;
+                if (reaching != null) {
+                    for (LightSource source : reaching)
+                        light += source.lightAt(x, y);
+                }
+                light = Math.min(maxLight, light);
+                intensity[y * width + x] = light;
+                int alpha = maxShade * (maxLight - light) / (maxLight - ambientLight);
+                shade.setRGB(y, x, Math.max(0, Math.min(maxShade, alpha)) << 24);
+                tilesRecomputed++;
+            }
+        }
+    }
+}
+
+/**
+ * A point of light on a tile. Falls off linearly to nothing
+ * just past its radius.
+ */
+class LightSource {
+
+    private int x;
+    private int y;
+    private int radius;
+    private int strength;
+
+    public LightSource(int x, int y, int radius, int strength) {
+        set(x, y, radius, strength);
+    }
+
+    public void set(int x, int y, int radius, int strength) {
+        this.x = x;
+        this.y = y;
+        this.radius = radius;
+        this.strength = strength;
+    }
+
+    public int lightAt(int tileX, int tileY) {
+        double distance = Math.hypot(tileX - x, tileY - y);
+        if (distance > radius)
+            return 0;
+        return (int) (strength * (1 - distance / (radius + 1)));
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    public int getStrength() {
+        return strength;
+    }
+}
+
+/**
+ * A sprite sliding from one tile to another.
+ */
+class AnimatedSprite {
+
+    private ImageIcon icon;
+    private double fromX;
+    private double fromY;
+    private int toX;
+    private int toY;
+    private long startNanos;
+
+    public AnimatedSprite(ImageIcon icon, int x, int y, long now) {
+        this.icon = icon;
+        fromX = x;
+        fromY = y;
+        toX = x;
+        toY = y;
+        startNanos = now;
+    }
+
+    // Starts a new slide from the sprite's current drawn position,
+    // so a move that interrupts another one does not jump.
+    public void moveTo(ImageIcon newIcon, int x, int y, long now) {
+        icon = newIcon;
+        if (x == toX && y == toY)
+            return;
+        double progress = progress(now);
+        fromX = fromX + (toX - fromX) * progress;
+        fromY = fromY + (toY - fromY) * progress;
+        toX = x;
+        toY = y;
+        startNanos = now;
+    }
+
+    // Fraction of the slide completed, from 0 to 1.
+    public double progress(long now) {
+        return Math.min(1.0, Math.max(0.0, (double) (now - startNanos) / SpriteAnimator.moveNanos));
+    }
+
+    public boolean isMoving(long now) {
+        return progress(now) < 1.0;
+    }
+
+    public ImageIcon getIcon() {
+        return icon;
+    }
+
+    public double getFromX() {
+        return fromX;
+    }
+
+    public double getFromY() {
+        return fromY;
+    }
+
+    public int getToX() {
+        return toX;
+    }
+
+    public int getToY() {
+        return toY;
+    }
+}
+
+/**
+ * A red flash on a tile that was hit.
+ */
+class TileFlash {
+
+    private final int x;
+    private final int y;
+    private final long startNanos;
+
+    public TileFlash(int x, int y, long startNanos) {
+        this.x = x;
+        this.y = y;
+        this.startNanos = startNanos;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+}
+
+/**
+ * Repaints the game screen at the display's refresh rate while
+ * anything is animating, separately from the turn-based model.
+ * The frame clock moves in whole fixed steps. If the EDT is busy and
+ * a frame is still waiting to be painted when the next one is due,
+ * that frame is skipped; the clock keeps pace with real time so the
+ * animations and the simulation never slow down.
+ */
+class RenderLoop {
+
+    private static final int defaultRefreshRate = 60;
+
+    private final SpriteAnimator animator;
+    private final long stepNanos;
+    private final FrameStats frameStats = new FrameStats(FrameStats.defaultSamples);
+    private final javax.swing.Timer timer;
+    private JComponent screen;
+    private long startNanos;
+    private long frameTime;
+    private boolean framePending;
+    private boolean wasAnimating;
+    private long lastFrameNanos;
+
+    public RenderLoop(SpriteAnimator animator) {
+        this.animator = animator;
+        stepNanos = 1_000_000_000L / displayRefreshRate();
+        timer = new javax.swing.Timer((int) Math.max(1, stepNanos / 1_000_000), e -> nextFrame());
+        timer.setCoalesce(true);
+    }
+
+    public void start(JComponent gameScreen) {
+        screen = gameScreen;
+        startNanos = System.nanoTime();
+        frameTime = startNanos;
+        timer.start();
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+
+    // Time the current frame shows, in System.nanoTime units.
+    public long getFrameTime() {
+        return frameTime;
+    }
+
+    public FrameStats getFrameStats() {
+        return frameStats;
+    }
+
+    // Called by the game screen after each paint.
+    public void framePainted(long paintNanos) {
+        long now = System.nanoTime();
+        if (lastFrameNanos != 0)
+            frameStats.record(now - lastFrameNanos, paintNanos);
+        lastFrameNanos = now;
+        framePending = false;
+    }
+
+    // Advances the clock by every step that has passed and asks for a
+    // repaint, unless the previous frame has not been painted yet.
+    private void nextFrame() {
+        long now = System.nanoTime();
+        long steps = (now - startNanos) / stepNanos;
+        long stepTime = startNanos + steps * stepNanos;
+        if (stepTime > frameTime + stepNanos)
+            frameStats.skipped((stepTime - frameTime) / stepNanos - 1);
+        frameTime = stepTime;
+        if (framePending) {
+            frameStats.skipped(1);
+            return;
+        }
+        // One more frame after the animations end so every
+        // sprite is drawn exactly on its tile.
+        boolean animating = animator.isAnimating(frameTime);
+        if (!animating && !wasAnimating) {
+            lastFrameNanos = 0;
+            return;
+        }
+        wasAnimating = animating;
+        framePending = true;
+        screen.repaint();
+    }
+
+    private static int displayRefreshRate() {
+        if (GraphicsEnvironment.isHeadless())
+            return defaultRefreshRate;
+        int rate = GraphicsEnvironment.getLocalGraphicsEnvironment()
+            .getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+        return (rate == DisplayMode.REFRESH_RATE_UNKNOWN) ? defaultRefreshRate : rate;
+    }
+}
+
+/**
+ * Rolling window of frame intervals and paint times with
+ * percentile queries, for tuning the renderer.
+ */
+class FrameStats {
+
+    public static final int defaultSamples = 1024;
+
+    private final long[] intervals;
+    private final long[] paintTimes;
+    private int count;
+    private int next;
+    private long framesSkipped;
+
+    public FrameStats(int samples) {
+        intervals = new long[samples];
+        paintTimes = new long[samples];
+    }
+
+    public synchronized void record(long intervalNanos, long paintNanos) {
+        intervals[next] = intervalNanos;
+        paintTimes[next] = paintNanos;
+        next = (next + 1) % intervals.length;
+        count = Math.min(count + 1, intervals.length);
+    }
+
+    public synchronized void skipped(long frames) {
+        framesSkipped += frames;
+    }
+
+    public synchronized long getFramesSkipped() {
+        return framesSkipped;
+    }
+
+    public synchronized int getSampleCount() {
+        return count;
+    }
+
+    // Nearest-rank percentile of recent frame intervals, in milliseconds.
+    public synchronized double intervalPercentile(double percent) {
+        return percentile(intervals, percent);
+    }
+
+    // Same as above for time spent painting a frame.
+    public synchronized double paintPercentile(double percent) {
+        return percentile(paintTimes, percent);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("frames %d, skipped %d, interval ms p50 %.2f p95 %.2f p99 %.2f, paint ms p50 %.2f p99 %.2f",
+            count, framesSkipped, intervalPercentile(50), intervalPercentile(95), intervalPercentile(99),
+            paintPercentile(50), paintPercentile(99));
+    }
+
+    private double percentile(long[] samples, double percent) {
+        if (count == 0)
+            return 0;
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percent / 100.0 * count);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+}
+
+/**
+ * Frozen copy of what is on the board at one moment: the level,
+ * the player and every monster's type, tile and health.
+ * Used to record sessions for replay and export.
+ */
+class BoardSnapshot {
+
+    private final int level;
+    private final int playerX;
+    private final int playerY;
+    private final int playerHealth;
+    private final int[] monsterTypes;
+    private final int[] monsterXs;
+    private final int[] monsterYs;
+    private final int[] monsterHealths;
+
+    private BoardSnapshot(GameModel gameModel) {
+        level = gameModel.getCurrentLevel();
+        Player player = gameModel.getPlayer();
+        playerX = player.getXPos();
+        playerY = player.getYPos();
+        playerHealth = player.getHealth();
+        ArrayList<GameCharacter> monsters = gameModel.getMonsters();
+        monsterTypes = new int[monsters.size()];
+        monsterXs = new int[monsters.size()];
+        monsterYs = new int[monsters.size()];
+        monsterHealths = new int[monsters.size()];
+        for (int i = 0; i < monsters.size(); i++) {
+            GameCharacter monster = monsters.get(i);
+            monsterTypes[i] = monster.getType().getId();
+            monsterXs[i] = monster.getXPos();
+            monsterYs[i] = monster.getYPos();
+            monsterHealths[i] = monster.getHealth();
+        }
+    }
+
+    public static BoardSnapshot of(GameModel gameModel) {
+        return new BoardSnapshot(gameModel);
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getPlayerX() {
+        return playerX;
+    }
+
+    public int getPlayerY() {
+        return playerY;
+    }
+
+    public int getPlayerHealth() {
+        return playerHealth;
+    }
+
+    public int getNumberOfMonsters() {
+        return monsterTypes.length;
+    }
+
+    public int getMonsterType(int index) {
+        return monsterTypes[index];
+    }
+
+    public int getMonsterX(int index) {
+        return monsterXs[index];
+    }
+
+    public int getMonsterY(int index) {
+        return monsterYs[index];
+    }
+
+    public int getMonsterHealth(int index) {
+        return monsterHealths[index];
+    }
+}
+
+/**
+ * Draws board snapshots into images without a display, using the
+ * same background, sprites and hearts as the game screen.
+ * Safe to use from several threads at once.
+ */
+class OffscreenRenderer {
+
+    private final int frameSide;
+    private final BufferedImage background;
+    private final Map<Integer, Image> heartImages = new HashMap<>();
+    private final SpriteCache spriteCache = new SpriteCache(1, null);
+
+    /**
+     * Constructor
+     * @param frameSide width and height of each frame in pixels.
+     */
+    public OffscreenRenderer(int frameSide) {
+        this.frameSide = frameSide;
+        SpriteGenerator.loadSprites();
+        background = ImageLoader.getImageAsBuffered(ImageLoader.gameScreenImage);
+        for (int health = 1; health <= Player.playerType.getMaxHealth(); health++)
+            heartImages.put(health, ImageLoader.getPlayerHeartsImage(health));
+    }
+
+    public BufferedImage newFrame() {
+        return new BufferedImage(frameSide, frameSide, BufferedImage.TYPE_INT_RGB);
+    }
+
+    // Draws the snapshot into the frame, replacing what was there.
+    // Model x is the tile row and y the column, as on the game screen.
+    public void render(BoardSnapshot snapshot, BufferedImage frame) {
+        Graphics2D g = frame.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(background, 0, 0, frameSide, frameSide, null);
+        int tileSide = frameSide / GameBoard.boardSide;
+        for (int i = 0; i < snapshot.getNumberOfMonsters(); i++) {
+            int x = snapshot.getMonsterX(i);
+            int y = snapshot.getMonsterY(i);
+            if (x < GameBoard.boardSide && y < GameBoard.boardSide)
+                drawSprite(g, MonsterCatalog.getType(snapshot.getMonsterType(i)).getSprite(), x, y, tileSide);
+        }
+        drawSprite(g, Player.playerType.getSprite(), snapshot.getPlayerX(), snapshot.getPlayerY(), tileSide);
+        Image hearts = heartImages.get(snapshot.getPlayerHealth());
+        if (hearts != null)
+            g.drawImage(spriteCache.getNow(hearts, tileSide), SpriteCache.scaled(11, tileSide), 0, null);
+        g.dispose();
+    }
+
+    // Centers the sprite on its tile, scaled to the frame size.
+    private void drawSprite(Graphics2D g, ImageIcon sprite, int x, int y, int tileSide) {
+        if (sprite == null)
+            return;
+        BufferedImage scaled = spriteCache.getNow(sprite.getImage(), tileSide);
+        g.drawImage(scaled, y * tileSide + (tileSide - scaled.getWidth()) / 2,
+            x * tileSide + (tileSide - scaled.getHeight()) / 2, null);
+    }
+}
+
+/**
+ * Exports a recorded session as numbered PNG frames without a display.
+ * Frames are rendered and encoded on a pool with one thread per core.
+ * At most two frames per thread are in flight at once, so memory stays
+ * bounded however long the session is.
+ *
+ * Usage: java -Djava.awt.headless=true FrameExporter outputDir [turns] [frameSide]
+ * Records a simulated session of the given length and exports it.
+ */
+class FrameExporter {
+
+    private static final int defaultTurns = 200;
+    private static final int defaultFrameSide = 640;
+
+    private final OffscreenRenderer renderer;
+    private final int threads;
+    // Each pool thread reuses one frame image.
+    private final ThreadLocal<BufferedImage> frames;
+
+    public FrameExporter(int frameSide, int threads) {
+        renderer = new OffscreenRenderer(frameSide);
+        this.threads = threads;
+        frames = ThreadLocal.withInitial(renderer::newFrame);
+    }
+
+    // Writes one frame_NNNNN.png per snapshot to the directory.
+    // Returns the number of frames written.
+    public int export(ArrayList<BoardSnapshot> session, File outputDirectory) throws IOException, InterruptedException {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+            throw new IOException("Cannot create " + outputDirectory);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Semaphore inFlight = new Semaphore(threads * 2);
+        ArrayList<Future<Void>> results = new ArrayList<>(session.size());
+        try {
+            for (int i = 0; i < session.size(); i++) {
+                BoardSnapshot snapshot = session.get(i);
+                File frameFile = new File(outputDirectory, String.format("frame_%05d.png", i));
+                inFlight.acquire();
+                results.add(pool.submit(() -> {
+                    try {
+                        BufferedImage frame = frames.get();
+                        renderer.render(snapshot, frame);
+                        ImageIO.write(frame, "png", frameFile);
+                        return null;
+                    }
+                    finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+            for (Future<Void> result : results)
+                result.get();
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Frame export failed", e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        return session.size();
+    }
+
+    // Plays a session with a player that attacks when it can and
+    // otherwise moves at random, recording a snapshot every action.
+    public static ArrayList<BoardSnapshot> recordSimulatedSession(int turns, long seed) {
+        SimulatedPlayer simulatedPlayer = new SimulatedPlayer(new Random(seed));
+        GameModel gameModel = new GameModel();
+        gameModel.setHistoryMemory(0);
+        ArrayList<BoardSnapshot> session = new ArrayList<>();
+        session.add(BoardSnapshot.of(gameModel));
+        for (int turn = 0; turn < turns && !gameModel.gameOver(); turn++) {
+            simulatedPlayer.act(gameModel);
+            session.add(BoardSnapshot.of(gameModel));
+            if (gameModel.playerTurnOver()) {
+                gameModel.monsterTurn();
+                gameModel.resetPlayerTurn();
+                session.add(BoardSnapshot.of(gameModel));
+            }
+        }
+        gameModel.close();
+        return session;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: FrameExporter outputDir [turns] [frameSide]");
+            return;
+        }
+        int turns = (args.length > 1) ? Integer.parseInt(args[1]) : defaultTurns;
+        int frameSide = (args.length > 2) ? Integer.parseInt(args[2]) : defaultFrameSide;
+        ArrayList<BoardSnapshot> session = recordSimulatedSession(turns, System.nanoTime());
+        FrameExporter exporter = new FrameExporter(frameSide, Runtime.getRuntime().availableProcessors());
+        long start = System.nanoTime();
+        int written = exporter.export(session, new File(args[0]));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Wrote %d frames in %.2f s (%.1f frames/s)%n", written, seconds, written / seconds);
+    }
+}
+
+/**
+ * Random player used to simulate sessions and runs headlessly.
+ * Each action picks a random adjacent tile to attack or move to. The
+ * tiles already tried from a position are kept in a transposition
+ * table keyed by the model's position hash, so coming back to the same
+ * position (as a blocked move does) tries somewhere new rather than
+ * repeating what got nowhere.
+ */
+class SimulatedPlayer {
+
+    private static final int tableSize = 1 << 14;
+    // One bit per tile of the 3x3 square around the player.
+    private static final int allTiles = (1 << 9) - 1;
+
+    private final Random random;
+    private final TranspositionTable<Integer> triedTiles =
+        new TranspositionTable<>(tableSize, TranspositionTable.ReplacementPolicy.ALWAYS_REPLACE);
+
+    public SimulatedPlayer(Random random) {
+        this.random = random;
+    }
+
+    // Attacks the chosen tile if there is a monster on it, otherwise
+    // tries to move there. Once every tile has been tried from a
+    // position they are all open again.
+    public void act(GameModel gameModel) {
+        long position = gameModel.positionHash();
+        Integer tried = triedTiles.get(position);
+        int mask = (tried == null || tried == allTiles) ? 0 : tried;
+        int tile;
+        do {
+            tile = random.nextInt(9);
+        } while ((mask & (1 << tile)) != 0);
+        triedTiles.put(position, mask | (1 << tile), 0);
+        Player player = gameModel.getPlayer();
+        int x = player.getXPos() + tile / 3 - 1;
+        int y = player.getYPos() + tile % 3 - 1;
+        if (gameModel.checkAttack(x, y, player))
+            gameModel.playerAttackAndAdvance(x, y);
+        else
+            gameModel.playerMove(x, y);
+    }
+
+    public TranspositionTable<Integer> getTriedTiles() {
+        return triedTiles;
+    }
+}
+
+/**
+ * Game controller that acts as an observer between the
+ * view and the model.
+ * Calls methods on each based on the user input and
+ * state of the game.
+ */
+class GameController {
+
+    private GameView gameView;
+    private GameModel gameModel;
+    private GameEventConsumer gameEvents;
+    private GameEventConsumer runEvents;
+    private GameEventHandler gameEventHandler = new GameEventHandler();
+    private RunTracker runTracker;
+    private RunLogWriter runLog;
+
+    /**
+     * Constructor gets model and view references, gives view
+     * listeners, and starts the intro theme music.
+     * @param view reference to the game view
+     * @param model reference to the game model
+     */
+    public GameController(GameView view, GameModel model) {
+        gameView = view;
+        gameModel = model;
+        gameView.receiveTitleSwitchListener(new TitleSwitchListener());
+        gameView.receiveGameTileListener(new GameTileListener());
+        gameView.receiveHistoryActions(new HistoryAction(true), new HistoryAction(false));
+        gameEvents = gameModel.getEventBus().subscribe();
+        runEvents = gameModel.getEventBus().subscribe();
+        runLog = RunLogWriter.forSession();
+        SoundSystem.playIntro();
+    }
+
+    // Updates the view for everything the model published since the
+    // last action, and the run's stats with it.
+    private void handleEvents() {
+        gameEventHandler.handle();
+        runEvents.poll(runTracker);
+    }
+
+    // Hands the finished run to the session's run log writer.
+    private void recordRun(boolean won) {
+        runEvents.poll(runTracker);
+        runLog.append(runTracker.finish(gameModel, won));
+    }
+
+    // Inner class that notifies view to switch from the title screen.
+    class TitleSwitchListener implements ActionListener {
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            gameView.switchToInstructions(new InstructionSwitchListener());
+        }
+    }
+
+    // Inner class that notifies view to switch to the game screen.
+    // Tells the view to setup game elements and switches music.
+    class InstructionSwitchListener implements ActionListener {
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            gameView.switchToGame();
+            // The run is timed from the first level, not the title screen.
+            runTracker = new RunTracker();
+            gameView.drawMonsters(gameModel.getVisibleMonsters());
+            gameView.drawPlayer(gameModel.getPlayer());
+            gameView.updatePlayerHealth();
+            SoundSystem.playGameTheme();
+        }
+    }
+
+    //Inner class that detects user input during game,
+    // notifies view and model of updates in the game state.
+    class GameTileListener implements ActionListener {
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            // Get tile user clicked and see if it was an enemy or open space.
+            // If occupied, attack. Otherwise, move.
+            // Clearing a level moves on to the next one.
+            int[] coords = gameModel.getGameBoard().coordsAsInts(e.getActionCommand());
+            if (gameModel.checkAttack(coords[0], coords[1], gameModel.getPlayer()))
+                gameModel.playerAttackAndAdvance(coords[0], coords[1]);
+            else
+                gameModel.playerMove(coords[0], coords[1]);
+
+            // If the player is out of actions, model processes monster turns.
+            if (gameModel.playerTurnOver())
+                gameModel.monsterTurn();
+            handleEvents();
+        }
+    }
+
+    // Inner class for the keys that step back and forward through
+    // the recent history of the game, one step per press.
+    class HistoryAction extends AbstractAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final boolean backwards;
+
+        public HistoryAction(boolean backwards) {
+            this.backwards = backwards;
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            if (!gameView.isShowingGame())
+                return;
+            if (backwards)
+                gameModel.rewind(1);
+            else
+                gameModel.replay(1);
+            handleEvents();
+        }
+    }
+
+    // Reacts to the events the model publishes. The board and hearts
+    // are redrawn once for all the events of an action, and only if
+    // something on them changed. If the player is out of health, game
+    // over; if the last level is cleared, the game is won.
+    class GameEventHandler implements GameEventListener {
+
+        private boolean boardChanged;
+        private boolean healthChanged;
+        private boolean gameEnded;
+
+        public void handle() {
+            boardChanged = false;
+            healthChanged = false;
+            gameEvents.poll(this);
+            if (gameEnded)
+                return;
+            if (boardChanged)
+                gameView.updateBoard();
+            if (healthChanged)
+                gameView.updatePlayerHealth();
+        }
+
+        @Override
+        public void onEvent(GameEventType type, int x, int y, int value) {
+            if (gameEnded)
+                return;
+            switch (type) {
+                case GAME_OVER:
+                    gameEnded = true;
+                    recordRun(false);
+                    gameView.switchToGameOver(new GameOverListener());
+                    SoundSystem.stopMusic();
+                    break;
+                case GAME_WON:
+                    gameEnded = true;
+                    recordRun(true);
+                    gameView.switchToGameWin(new GameWinListener());
+                    SoundSystem.playGameWin();
+                    break;
+                case PLAYER_HIT:
+                case PLAYER_HIT_UNDONE:
+                case PLAYER_HIT_REDONE:
+                case HISTORY_REWOUND:
+                case HISTORY_REPLAYED:
+                    healthChanged = true;
+                    boardChanged = true;
+                    break;
+                default:
+                    boardChanged = true;
+                    break;
+            }
+        }
+    }
+
+    // Exit the program when user clicks on game over screen.
+    class GameOverListener implements ActionListener {
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            gameModel.close();
+            System.exit(0);
+        }
+    }
+
+    // Notify the view to update to the game win screen.
+    class GameWinListener implements ActionListener {
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            gameView.switchToGameWinTwo(new GameWinTwoListener());
+        }
+    }
+
+    // Exit the program when user clicks on final game win screen.
+    class GameWinTwoListener implements ActionListener {
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            gameModel.close();
+            System.exit(0);
+        }
+    }
+
+}
+
+/**
+ * Main JFrame that houses the game GUI.
+ * The game view has a reference to it and
+ * uses it to represent the game state.
+ */
+class GameWindow extends JFrame {
+
+    private JButton buttonScreen;
+    private JPanel gameScreen;
+
+    /**
+     * Default constructor
+     */
+    public GameWindow () {
+        initGameWindow();
+    }
+
+    // Called by the constructor to setup the initial frame state.
+    private void initGameWindow () {
+        // Change to look and feel of local machine.
+        try {UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());}
+        catch(UnsupportedLookAndFeelException |
+            ClassNotFoundException |
+            InstantiationException |
+            IllegalAccessException ignore){}
+        setLayout(new BorderLayout());
+        setSize(ChelonTwoMain.windowSide, ChelonTwoMain.windowSide);
+        setIconImage(ImageLoader.getImageAsBuffered(ImageLoader.frameIconImage));
+        setTitle("Nocturne of Dusk");
+        buttonScreen = new JButton();
+        buttonScreen = setButtonScreen(ImageLoader.imageToAdd(ImageLoader.titleScreenImage));
+        add(buttonScreen);
+        setLocationRelativeTo(null);
+        setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+
+    }
+
+    // Creates a JButton that will serve as title and ending screens.
+    public JButton setButtonScreen(JLabel image) {
+        buttonScreen = new JButton();
+        buttonScreen.setBorder(BorderFactory.createEmptyBorder());
+        buttonScreen.setOpaque(false);
+        buttonScreen.setContentAreaFilled(false);
+        buttonScreen.setBorderPainted(false);
+        buttonScreen.setFocusPainted(false);
+        buttonScreen.add(image, BorderLayout.CENTER);
+        return buttonScreen;
+    }
+
+    public JButton getButtonScreen() {
+        return buttonScreen;
+    }
+
+    // Creates a JPanel for the game screen where play takes place.
+    // The game background is painted directly onto the panel, then
+    // the animated sprites and the darkness on top of it, all under
+    // the clear tile buttons.
+    public JPanel setGameScreen(BufferedImage image, SpriteAnimator animator, LightMap lightMap, RenderLoop renderLoop) {
+        if (image == null)
+            System.out.println("Failed to load Game Screen");
+        gameScreen = new JPanel() {
+            public void paintComponent(Graphics g) {
+                long paintStart = System.nanoTime();
+                super.paintComponent(g);
+                g.drawImage(image, 0, 0, ChelonTwoMain.windowSide, ChelonTwoMain.windowSide, this);
+                animator.paint(g, this, renderLoop.getFrameTime());
+                lightMap.paint(g, getWidth(), getHeight(), GameBoard.boardSide, GameBoard.boardSide);
+                renderLoop.framePainted(System.nanoTime() - paintStart);
+            }
+        };
+        // Setup layout for the game tiles.
+        gameScreen.setLayout(new GridLayout(8, 8));
+        return gameScreen;
+    }
+
+    public JPanel getGameScreen() {
+        return gameScreen;
+    }
+
+}
+
+/**
+ * Class that holds the positioning of all
+ * monsters on the game board. Player is not included.
+ */
+class GameBoard {
+
+    // Side length of the standard board, walls included.
+    public static final int boardSide = 8;
+    // Character on each tile, indexed by tile (y * width + x),
+    // null where the tile is empty.
+    private GameCharacter[] tiles;
+    // Occupancy bitmap, one bit per tile in the same row-major order.
+    // Neighbourhood and radius queries scan this instead of the tiles.
+    private BitSet occupied;
+    // Characters moved, added or removed since they were last taken,
+    // collected only while someone is tracking changes.
+    private Set<GameCharacter> changedCharacters;
+    // Zobrist hash of every monster's type, tile and health,
+    // updated as monsters move, take damage and are removed.
+    private long hash;
+    private int numberOfMonsters;
+    private int width;
+    private int height;
+
+    /**
+     * Constructor that takes an array and calls the fill method.
+     * @param startSpawns an array of starting monsters
+     */
+    public GameBoard (ArrayList<GameCharacter> startSpawns) {
+        this(startSpawns, boardSide, boardSide);
+    }
+
+    /**
+     * Constructor for boards other than the standard size.
+     * @param startSpawns an array of starting monsters
+     * @param width tiles per row, walls included.
+     * @param height tiles per column, walls included.
+     */
+    public GameBoard (ArrayList<GameCharacter> startSpawns, int width, int height) {
+        this.width = width;
+        this.height = height;
+        tiles = new GameCharacter[width * height];
+        occupied = new BitSet(width * height);
+        fillCharacters(startSpawns);
+        numberOfMonsters = occupied.cardinality();
+    }
+
+    // Puts the characters from the given array on their tiles.
+    private void fillCharacters(ArrayList<GameCharacter> startSpawns) {
+        for (GameCharacter character : startSpawns) {
+            if (tiles[keyOf(character)] != null)
+                hash ^= hashOf(tiles[keyOf(character)]);
+            tiles[keyOf(character)] = character;
+            occupied.set(keyOf(character));
+            hash ^= hashOf(character);
+        }
+    }
+
+    // The character's contribution to the board hash.
+    private long hashOf(GameCharacter character) {
+        return ZobristKeys.key(ZobristKeys.monster, keyOf(character),
+            ((long) character.getType().getId() << 32) | (character.getHealth() & 0xFFFFFFFFL));
+    }
+
+    // Methods that turn coordinates into the tile index.
+    private int keyOf(int x, int y) {
+        return y * width + x;
+    }
+
+    private int keyOf(GameCharacter character) {
+        return keyOf(character.getXPos(), character.getYPos());
+    }
+
+    // Converts a tile's action command (its two digits) to coordinates.
+    public int[] coordsAsInts (String coords) {
+        return new int[] {Character.getNumericValue(coords.charAt(0)),
+            Character.getNumericValue(coords.charAt(1))};
+    }
+
+    public boolean inBounds(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    // Get the character at a given location.
+    public GameCharacter getCharacterAtCoords(int x, int y) {
+        if (!inBounds(x, y))
+            return null;
+        return tiles[keyOf(x, y)];
+    }
+
+    public boolean isOccupied(int x, int y) {
+        return inBounds(x, y) && occupied.get(y * width + x);
+    }
+
+    public boolean isOpen(int x, int y) {
+        return inBounds(x, y) && !occupied.get(y * width + x);
+    }
+
+    // Bit for the neighbour at the given offset in a neighbour mask.
+    // Bits run row by row from (-1, -1) to (1, 1), skipping the centre.
+    public static int neighbourBit(int dx, int dy) {
+        int index = (dy + 1) * 3 + (dx + 1);
+        return 1 << ((index > 4) ? index - 1 : index);
+    }
+
+    // Returns the occupancy of the eight tiles around the given tile
+    // as a bitmask (see neighbourBit). Off-board tiles are left clear.
+    public int neighbourMask(int x, int y) {
+        int mask = 0;
+        int bit = 1;
+        for (int dy = -1; dy < 2; dy++) {
+            for (int dx = -1; dx < 2; dx++) {
+                if (dx == 0 && dy == 0)
+                    continue;
+                if (isOccupied(x + dx, y + dy))
+                    mask |= bit;
+                bit <<= 1;
+            }
+        }
+        return mask;
+    }
+
+    // Adds every character within the given distance of the tile to
+    // the list. Each row of the square around the tile is scanned a
+    // word of the bitmap at a time, so empty space is skipped quickly.
+    public void charactersWithin(int x, int y, int radius, ArrayList<GameCharacter> found) {
+        int firstRow = Math.max(0, y - radius);
+        int lastRow = Math.min(height - 1, y + radius);
+        int firstColumn = Math.max(0, x - radius);
+        int lastColumn = Math.min(width - 1, x + radius);
+        for (int row = firstRow; row <= lastRow; row++) {
+            int dy = row - y;
+            int rowEnd = row * width + lastColumn;
+            for (int tile = occupied.nextSetBit(row * width + firstColumn);
+                 tile >= 0 && tile <= rowEnd; tile = occupied.nextSetBit(tile + 1)) {
+                int dx = tile - row * width - x;
+                if (dx * dx + dy * dy <= radius * radius)
+                    found.add(tiles[tile]);
+            }
+        }
+    }
+
+    public int getNumberOfMonsters() {
+        return numberOfMonsters;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // The outer ring of tiles is wall. Anything off the board
+    // is treated as wall as well.
+    public boolean isWall(int x, int y) {
+        return x <= 0 || y <= 0 || x >= width - 1 || y >= height - 1;
+    }
+
+    // Walls are the only terrain that blocks line of sight.
+    public boolean blocksSight(int x, int y) {
+        return isWall(x, y);
+    }
+
+    public void setTrackingChanges(boolean tracking) {
+        changedCharacters = tracking ? Collections.newSetFromMap(new IdentityHashMap<>()) : null;
+    }
+
+    // Returns the characters changed since the last call and starts
+    // collecting afresh.
+    public ArrayList<GameCharacter> takeChangedCharacters() {
+        if (changedCharacters == null)
+            return new ArrayList<>();
+        ArrayList<GameCharacter> changed = new ArrayList<>(changedCharacters);
+        changedCharacters.clear();
+        return changed;
+    }
+
+    private void characterChanged(GameCharacter character) {
+        if (changedCharacters != null)
+            changedCharacters.add(character);
+    }
+
+    // Puts a character on its tile, as when a removal is undone.
+    public void addMonster(GameCharacter character) {
+        characterChanged(character);
+        numberOfMonsters++;
+        tiles[keyOf(character)] = character;
+        occupied.set(keyOf(character));
+        hash ^= hashOf(character);
+    }
+
+    public void removeMonster(int x, int y) {
+        numberOfMonsters--;
+        GameCharacter character = tiles[keyOf(x, y)];
+        tiles[keyOf(x, y)] = null;
+        if (character != null) {
+            occupied.clear(keyOf(x, y));
+            hash ^= hashOf(character);
+            characterChanged(character);
+        }
+    }
+
+    // Deals damage to the character at the given location and
+    // returns it.
+    public GameCharacter damageMonster(int x, int y, int damage) {
+        GameCharacter character = getCharacterAtCoords(x, y);
+        hash ^= hashOf(character);
+        character.takeDamage(damage);
+        hash ^= hashOf(character);
+        return character;
+    }
+
+    // Moves the character at the first coordinates to the second,
+    // touching only those two tiles instead of rebuilding the board.
+    public void moveMonster(int fromX, int fromY, int toX, int toY) {
+        GameCharacter character = tiles[keyOf(fromX, fromY)];
+        if (character == null)
+            return;
+        tiles[keyOf(fromX, fromY)] = null;
+        occupied.clear(keyOf(fromX, fromY));
+        hash ^= hashOf(character);
+        character.move(toX, toY);
+        tiles[keyOf(character)] = character;
+        occupied.set(keyOf(character));
+        hash ^= hashOf(character);
+        characterChanged(character);
+    }
+
+    public long getHash() {
+        return hash;
+    }
+
+    // Returns the characters on the board in tile order.
+    public ArrayList<GameCharacter> getBoard() {
+        ArrayList<GameCharacter> characters = new ArrayList<>(occupied.cardinality());
+        for (int tile = occupied.nextSetBit(0); tile >= 0; tile = occupied.nextSetBit(tile + 1))
+            characters.add(tiles[tile]);
+        return characters;
+    }
+
+}
+
+/**
+ * Field of view of a single viewer, computed with recursive
+ * shadowcasting into a bitset with one bit per tile.
+ * The bitset is reused between turns and only recomputed when the
+ * viewer moves or the board (and so the terrain) is replaced.
+ * Queries afterwards are a single bit lookup.
+ */
+class FieldOfView {
+
+    // Multipliers that map the first octant onto each of the eight.
+    private static final int[][] octants = {
+        {1, 0, 0, 1}, {0, 1, 1, 0}, {0, -1, 1, 0}, {-1, 0, 0, 1},
+        {-1, 0, 0, -1}, {0, -1, -1, 0}, {0, 1, -1, 0}, {1, 0, 0, -1}
+    };
+
+    private final int radius;
+    private final BitSet visible = new BitSet();
+    private GameBoard board;
+    private int width;
+    private int originX = -1;
+    private int originY = -1;
+
+    /**
+     * Constructor
+     * @param radius how far the viewer can see, in tiles.
+     */
+    public FieldOfView(int radius) {
+        this.radius = radius;
+    }
+
+    // Recomputes the view if the viewer or board has changed.
+    // Returns true if a recompute happened.
+    public boolean update(GameBoard gameBoard, int x, int y) {
+        if (gameBoard == board && x == originX && y == originY)
+            return false;
+        board = gameBoard;
+        width = gameBoard.getWidth();
+        originX = x;
+        originY = y;
+        visible.clear();
+        markVisible(x, y);
+        for (int[] octant : octants)
+            castLight(1, 1.0, 0.0, octant[0], octant[1], octant[2], octant[3]);
+        return true;
+    }
+
+    public boolean isVisible(int x, int y) {
+        if (board == null || x < 0 || y < 0 || x >= width || y >= board.getHeight())
+            return false;
+        return visible.get(y * width + x);
+    }
+
+    // Line of sight is symmetric for shadowcasting on this grid,
+    // so a tile in view can also see the viewer.
+    public boolean hasLineOfSight(int x, int y) {
+        return isVisible(x, y);
+    }
+
+    private void markVisible(int x, int y) {
+        if (x >= 0 && y >= 0 && x < width && y < board.getHeight())
+            visible.set(y * width + x);
+    }
+
+    // Scans one octant row by row, starting a new scan past each
+    // run of opaque tiles with the slopes narrowed around it.
+    private void castLight(int row, double start, double end, int xx, int xy, int yx, int yy) {
+        if (start < end)
+            return;
+        double newStart = 0.0;
+        for (int j = row; j <= radius; j++) {
+            int dx = -j - 1;
+            int dy = -j;
+            boolean blocked = false;
+            while (dx <= 0) {
+                dx++;
+                int x = originX + dx * xx + dy * xy;
+                int y = originY + dx * yx + dy * yy;
+                double leftSlope = (dx - 0.5) / (dy + 0.5);
+                double rightSlope = (dx + 0.5) / (dy - 0.5);
+                if (start < rightSlope)
+                    continue;
+                else if (end > leftSlope)
+                    break;
+                if (dx * dx + dy * dy <= radius * radius)
+                    markVisible(x, y);
+                boolean opaque = board.blocksSight(x, y);
+                if (blocked) {
+                    if (opaque) {
+                        newStart = rightSlope;
+                    }
+                    else {
+                        blocked = false;
+                        start = newStart;
+                    }
+                }
+                else if (opaque && j < radius) {
+                    blocked = true;
+                    castLight(j + 1, start, leftSlope, xx, xy, yx, yy);
+                    newStart = rightSlope;
+                }
+            }
+            if (blocked)
+                break;
+        }
+    }
+}
+
+/**
+ * Keys for Zobrist hashing of game positions.
+ * Instead of tables of random numbers, which would not fit the largest
+ * boards, each key is derived on demand by mixing the feature's kind
+ * and values with a fixed seed. Keys are stable across runs, so hashes
+ * can be saved and compared by replay tools.
+ */
+class ZobristKeys {
+
+    // Kinds of features that make up a position.
+    public static final int monster = 1;
+    public static final int playerTile = 2;
+    public static final int playerHealth = 3;
+    public static final int playerMoves = 4;
+    public static final int level = 5;
+
+    private static final long seed = 0x2F6A3C8E1D5B7049L;
+    private static final long gamma = 0x9E3779B97F4A7C15L;
+
+    public static long key(int kind, long first, long second) {
+        return mix(mix(mix(seed + kind * gamma) + first * gamma) + second * gamma);
+    }
+
+    // SplitMix64 finalizer.
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
+
+/**
+ * Fixed-size cache of values keyed by position hash, for search
+ * and replay tools to share.
+ * Each hash maps to one slot; when two hashes compete for a slot the
+ * replacement policy decides which entry stays.
+ * Tracks hits, misses, stores and replacements.
+ */
+class TranspositionTable<V> {
+
+    /**
+     * How a new entry treats an existing entry for a different
+     * position in its slot.
+     */
+    enum ReplacementPolicy {
+        // Newest entry always wins.
+        ALWAYS_REPLACE,
+        // Entry searched to the greater depth wins; ties go to the new one.
+        DEPTH_PREFERRED,
+        // First entry stays until cleared.
+        KEEP_EXISTING
+    }
+
+    private final ReplacementPolicy policy;
+    private final int mask;
+    private final long[] keys;
+    private final int[] depths;
+    private final Object[] values;
+    private long hits;
+    private long misses;
+    private long stores;
+    private long replacements;
+
+    /**
+     * Constructor
+     * @param capacity number of slots, rounded up to a power of two.
+     * @param policy replacement policy for colliding entries.
+     */
+    public TranspositionTable(int capacity, ReplacementPolicy policy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.policy = policy;
+        mask = size - 1;
+        keys = new long[size];
+        depths = new int[size];
+        values = new Object[size];
+    }
+
+    // Returns the value stored for the hash, or null.
+    @SuppressWarnings("unchecked")
+    public synchronized V get(long hash) {
+        int slot = slotOf(hash);
+        if (values[slot] != null && keys[slot] == hash) {
+            hits++;
+            return (V) values[slot];
+        }
+        misses++;
+        return null;
+    }
+
+    // Stores a value if the replacement policy allows it.
+    // Returns true if it was stored.
+    public synchronized boolean put(long hash, V value, int depth) {
+        int slot = slotOf(hash);
+        boolean occupied = values[slot] != null && keys[slot] != hash;
+        if (occupied) {
+            if (policy == ReplacementPolicy.KEEP_EXISTING)
+                return false;
+            if (policy == ReplacementPolicy.DEPTH_PREFERRED && depth < depths[slot])
+                return false;
+            replacements++;
+        }
+        keys[slot] = hash;
+        depths[slot] = depth;
+        values[slot] = value;
+        stores++;
+        return true;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(values, null);
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getStores() {
+        return stores;
+    }
+
+    public synchronized long getReplacements() {
+        return replacements;
+    }
+
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+
+    // Zobrist keys are evenly mixed, so the low bits pick the slot.
+    private int slotOf(long hash) {
+        return (int) hash & mask;
+    }
+}
+
+/**
+ * Memory-mapped file holding every level of the dungeon outside the
+ * heap, so levels can be revisited without keeping them all in memory.
+ *
+ * Layout: a header (magic, version, level slots), a directory with one
+ * fixed-size entry per level (data offset, record capacity, record
+ * count, board width and height), then each level's monsters as
+ * fixed-width records of type id, x, y and health. A level keeps its
+ * region when it is saved again unless it has outgrown it.
+ * Records are read straight out of the mapped pages into monsters.
+ */
+class DungeonStore implements Closeable {
+
+    public static final int maxLevels = 1024;
+    public static final int recordBytes = 16;
+    private static final int magic = 0x43484C32;
+    private static final int version = 1;
+    private static final int headerBytes = 16;
+    private static final int entryBytes = 24;
+    private static final int directoryBytes = headerBytes + maxLevels * entryBytes;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer directory;
+    private long endOfData;
+
+    /**
+     * Opens or creates a dungeon file.
+     * @param dungeonFile file to store the levels in.
+     * @throws IOException if the file cannot be opened or is not a dungeon file.
+     */
+    public DungeonStore(File dungeonFile) throws IOException {
+        file = new RandomAccessFile(dungeonFile, "rw");
+        channel = file.getChannel();
+        directory = channel.map(FileChannel.MapMode.READ_WRITE, 0, directoryBytes);
+        if (directory.getInt(0) == 0) {
+            directory.putInt(0, magic);
+            directory.putInt(4, version);
+            directory.putInt(8, maxLevels);
+        }
+        else if (directory.getInt(0) != magic || directory.getInt(4) != version) {
+            close();
+            throw new IOException("Not a dungeon file: " + dungeonFile);
+        }
+        endOfData = directoryBytes;
+        for (int level = 0; level < maxLevels; level++) {
+            if (hasLevel(level))
+                endOfData = Math.max(endOfData, offsetOf(level) + (long) capacityOf(level) * recordBytes);
+        }
+    }
+
+    // Store in a temporary file. The file is unlinked as soon as it is
+    // open, so it goes away with the store's last handle instead of
+    // lingering until exit. Where an open file can't be deleted, it is
+    // deleted when the game exits instead.
+    public static DungeonStore createTemporary() throws IOException {
+        File dungeonFile = File.createTempFile("chelon-dungeon", ".dat");
+        DungeonStore store = new DungeonStore(dungeonFile);
+        if (!dungeonFile.delete())
+            dungeonFile.deleteOnExit();
+        return store;
+    }
+
+    public boolean hasLevel(int level) {
+        return level >= 0 && level < maxLevels && offsetOf(level) != 0;
+    }
+
+    // Writes the board's monsters into the level's region.
+    // A level already saved is hidden while its region is rewritten,
+    // so a half-written level is never visible.
+    public void saveLevel(int level, GameBoard board) throws IOException {
+        checkLevel(level);
+        int count = board.getBoard().size();
+        long offset = offsetOf(level);
+        int capacity = capacityOf(level);
+        directory.putLong(entryOf(level), 0);
+        if (offset == 0 || capacity < count) {
+            offset = endOfData;
+            capacity = Math.max(1, count);
+            endOfData += (long) capacity * recordBytes;
+        }
+        MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_WRITE, offset, (long) capacity * recordBytes);
+        for (GameCharacter character : board.getBoard()) {
+            records.putInt(character.getType().getId());
+            records.putInt(character.getXPos());
+            records.putInt(character.getYPos());
+            records.putInt(character.getHealth());
+        }
+        int entry = entryOf(level);
+        directory.putInt(entry + 8, capacity);
+        directory.putInt(entry + 12, count);
+        directory.putInt(entry + 16, board.getWidth());
+        directory.putInt(entry + 20, board.getHeight());
+        // Offset last, so a level is never visible before its records are.
+        directory.putLong(entry, offset);
+    }
+
+    // Rebuilds a saved level's board from its records.
+    public GameBoard loadLevel(int level) throws IOException {
+        checkLevel(level);
+        if (!hasLevel(level))
+            throw new IOException("Level " + level + " has not been saved");
+        int entry = entryOf(level);
+        int count = directory.getInt(entry + 12);
+        MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, offsetOf(level), (long) count * recordBytes);
+        ArrayList<GameCharacter> monsters = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            CharacterType type = MonsterCatalog.getType(records.getInt());
+            Monster monster = MonsterCatalog.spawn(type.getName(), records.getInt(), records.getInt());
+            monster.takeDamage(type.getMaxHealth() - records.getInt());
+            monsters.add(monster);
+        }
+        return new GameBoard(monsters, directory.getInt(entry + 16), directory.getInt(entry + 20));
+    }
+
+    // Total bytes used on disk.
+    public long getSize() {
+        return endOfData;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        file.close();
+    }
+
+    private void checkLevel(int level) {
+        if (level < 0 || level >= maxLevels)
+            throw new IllegalArgumentException("Level out of range: " + level);
+    }
+
+    private int entryOf(int level) {
+        return headerBytes + level * entryBytes;
+    }
+
+    private long offsetOf(int level) {
+        return directory.getLong(entryOf(level));
+    }
+
+    private int capacityOf(int level) {
+        return directory.getInt(entryOf(level) + 8);
+    }
+}
+
+/**
+ * Class that generates the levels of gameplay.
+ * Spawn points are predetermined and shuffled to allow
+ * for variance in level creation.
+ */
+class LevelCreator {
+
+    private static int startingMonsters = 3;
+    private static int monsterIncrease = 1;
+    private static int maxMonsters = 8;
+    private static ArrayList<int[]> spawnLocations = new ArrayList<int[]>() {{
+        add(new int[]{1, 1});
         add(new int[]{3, 1});
         add(new int[]{4, 2});
         add(new int[]{6, 5});
@@ -707,411 +3652,2171 @@ class LevelCreator {
         add(new int[]{6, 6});
     }};
 
-    // Generates a level based on a given integer value.
-    public static ArrayList<GameCharacter> generateLevel(int currentLevel) {
-        // Shuffle spawn locations
-        resetSpawnLocations();
-        // Calculates the number of monsters to spawn based on level.
-        int numberOfMonsters = startingMonsters + (monsterIncrease * (currentLevel - 1));
-        if (numberOfMonsters > maxMonsters)
-            numberOfMonsters = maxMonsters;
-        ArrayList<GameCharacter> createdLevel = new ArrayList<>();
-        Random random = new Random();
-        // Spawns monsters based on stated frequency
-        for (int i = 0; i < numberOfMonsters; i++) {
-            int randomMonster = random.nextInt(101);
-            if (randomMonster <= mothFrequency)
-                createdLevel.add(new Moth(spawnLocations.get(i)[0], spawnLocations.get(i)[1]));
+    // Generates a level based on a given integer value.
+    public static ArrayList<GameCharacter> generateLevel(int currentLevel) {
+        // Shuffle spawn locations
+        resetSpawnLocations();
+        // Calculates the number of monsters to spawn based on level.
+        int numberOfMonsters = startingMonsters + (monsterIncrease * (currentLevel - 1));
+        if (numberOfMonsters > maxMonsters)
+            numberOfMonsters = maxMonsters;
+        ArrayList<GameCharacter> createdLevel = new ArrayList<>();
+        Random random = new Random();
+        // Spawns monsters based on the catalog's spawn weights
+        for (int i = 0; i < numberOfMonsters; i++) {
+            createdLevel.add(MonsterCatalog.spawnRandom(random, spawnLocations.get(i)[0], spawnLocations.get(i)[1]));
+        }
+        return createdLevel;
+    }
+
+    private static void resetSpawnLocations() {
+        Collections.shuffle(spawnLocations);
+    }
+
+    // Side length of a square board that fits the given number of
+    // monsters at about one monster per four floor tiles. There is
+    // always at least one floor tile, for the player.
+    public static int stressBoardSide(int numberOfMonsters) {
+        return Math.max(1, (int) Math.ceil(Math.sqrt(numberOfMonsters * 4.0))) + 2;
+    }
+
+    // Generates a large population for stress testing, scattered over
+    // the floor of a board with the given side, using the same
+    // spawn weights as normal levels. The player's tile is left free.
+    public static ArrayList<GameCharacter> generateStressLevel(int numberOfMonsters, int boardSide,
+                                                               int playerX, int playerY, long seed) {
+        int floorSide = boardSide - 2;
+        int floorTiles = floorSide * floorSide;
+        if (numberOfMonsters >= floorTiles)
+            throw new IllegalArgumentException("Board too small for " + numberOfMonsters + " monsters");
+        Random random = new Random(seed);
+        BitSet taken = new BitSet(floorTiles);
+        taken.set((playerY - 1) * floorSide + (playerX - 1));
+        ArrayList<GameCharacter> createdLevel = new ArrayList<>(numberOfMonsters);
+        while (createdLevel.size() < numberOfMonsters) {
+            int tile = random.nextInt(floorTiles);
+            if (taken.get(tile))
+                continue;
+            taken.set(tile);
+            int x = tile % floorSide + 1;
+            int y = tile / floorSide + 1;
+            createdLevel.add(MonsterCatalog.spawnRandom(random, x, y));
+        }
+        return createdLevel;
+    }
+}
+
+/**
+ * Headless stress mode that runs monster turns on a large board.
+ * Reports turns per second, per-turn latency percentiles and heap use
+ * so changes to the engine can be compared against a fixed target.
+ *
+ * Usage: java StressTest [monsters] [turns] [warmupTurns] [seed]
+ * Defaults to 10,000 monsters. A million monsters needs about -Xmx2g.
+ */
+class StressTest {
+
+    private static final int defaultMonsters = 10_000;
+    private static final int defaultTurns = 100;
+    private static final int defaultWarmupTurns = 10;
+
+    private static final String usage = "Usage: StressTest [monsters >= 0] [turns >= 1] [warmupTurns >= 0] [seed]";
+
+    public static void main(String[] args) {
+        int monsters;
+        int turns;
+        int warmupTurns;
+        long seed;
+        try {
+            monsters = (args.length > 0) ? Integer.parseInt(args[0]) : defaultMonsters;
+            turns = (args.length > 1) ? Integer.parseInt(args[1]) : defaultTurns;
+            warmupTurns = (args.length > 2) ? Integer.parseInt(args[2]) : defaultWarmupTurns;
+            seed = (args.length > 3) ? Long.parseLong(args[3]) : 338;
+        }
+        catch (NumberFormatException e) {
+            System.out.println(usage);
+            return;
+        }
+        if (monsters < 0 || turns < 1 || warmupTurns < 0) {
+            System.out.println(usage);
+            return;
+        }
+
+        int side = LevelCreator.stressBoardSide(monsters);
+        Player player = new Player(side / 2, side / 2);
+        long heapBefore = usedHeap();
+        GameBoard gameBoard = new GameBoard(
+            LevelCreator.generateStressLevel(monsters, side, player.getXPos(), player.getYPos(), seed), side, side);
+        GameModel gameModel = new GameModel(gameBoard, player);
+        gameModel.setHistoryMemory(0);
+        long heapLoaded = usedHeap();
+        System.out.printf("Board %dx%d with %,d monsters%n", side, side, gameBoard.getNumberOfMonsters());
+
+        for (int i = 0; i < warmupTurns; i++)
+            gameModel.monsterTurn();
+
+        long[] turnNanos = new long[turns];
+        long start = System.nanoTime();
+        for (int i = 0; i < turns; i++) {
+            long turnStart = System.nanoTime();
+            gameModel.monsterTurn();
+            turnNanos[i] = System.nanoTime() - turnStart;
+        }
+        long elapsed = System.nanoTime() - start;
+        long heapAfter = usedHeap();
+        gameModel.close();
+
+        Arrays.sort(turnNanos);
+        System.out.printf("Turns: %d in %.2f s (%.1f turns/s)%n", turns, elapsed / 1e9, turns / (elapsed / 1e9));
+        System.out.printf("Turn latency ms: p50 %.2f  p90 %.2f  p99 %.2f  max %.2f%n",
+            percentile(turnNanos, 50), percentile(turnNanos, 90), percentile(turnNanos, 99),
+            turnNanos[turns - 1] / 1e6);
+        System.out.printf("Heap MB: before %.1f  loaded %.1f  after %.1f  (%.0f bytes per monster)%n",
+            heapBefore / 1e6, heapLoaded / 1e6, heapAfter / 1e6,
+            (double) (heapLoaded - heapBefore) / Math.max(1, monsters));
+    }
+
+    // Nearest-rank percentile of sorted values, in milliseconds.
+    private static double percentile(long[] sortedNanos, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sortedNanos.length);
+        return sortedNanos[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+/**
+ * Component that dictates motion methods
+ * for the object it is attached to.
+ */
+interface IMovementComponent {
+    int getMoveSpeed();
+    int[] getCoords();
+    void move(int x, int y);
+    boolean ableToMove();
+}
+
+/**
+ * Methods for health and taking damage.
+ */
+interface IVitalityComponent {
+    int getMaxHealth();
+    int getHealth();
+    void takeDamage(int damage);
+    boolean isAlive();
+}
+
+/**
+ * Combat methods - dealing damage.
+ */
+interface ICombatComponent {
+    int getAttackPower();
+    int attack();
+}
+
+/**
+ * Shared, immutable stats for one kind of character.
+ * Every character of a type points at the same instance, so the
+ * stats and sprite are stored once no matter how many are spawned.
+ */
+class CharacterType {
+
+    private final int id;
+    private final String name;
+    private final int maxHealth;
+    private final int moveSpeed;
+    private final int attackPower;
+    private final String spriteLabel;
+    private final int spawnWeight;
+    private final int lightRadius;
+
+    /**
+     * Constructor
+     * @param id index of the type in its catalog.
+     * @param name name of the type.
+     * @param maxHealth max health of character.
+     * @param moveSpeed amount of spaces of movement per turn.
+     * @param attackPower damage dealt with single attack.
+     * @param spriteLabel name of the sprite in the sprite generator.
+     * @param spawnWeight relative chance of spawning in a level.
+     * @param lightRadius how far the character's own light reaches, 0 for none.
+     */
+    public CharacterType(int id, String name, int maxHealth, int moveSpeed, int attackPower,
+                         String spriteLabel, int spawnWeight, int lightRadius) {
+        this.id = id;
+        this.name = name;
+        this.maxHealth = maxHealth;
+        this.moveSpeed = moveSpeed;
+        this.attackPower = attackPower;
+        this.spriteLabel = spriteLabel;
+        this.spawnWeight = spawnWeight;
+        this.lightRadius = lightRadius;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxHealth() {
+        return maxHealth;
+    }
+
+    public int getMoveSpeed() {
+        return moveSpeed;
+    }
+
+    public int getAttackPower() {
+        return attackPower;
+    }
+
+    public int getSpawnWeight() {
+        return spawnWeight;
+    }
+
+    public int getLightRadius() {
+        return lightRadius;
+    }
+
+    public ImageIcon getSprite() {
+        return SpriteGenerator.getSprite(spriteLabel);
+    }
+}
+
+/**
+ * Abstract class that represents a character in the game world.
+ * Uses the movement, combat, and vitality interfaces to dictate
+ * the functionality a character will have.
+ * Stats come from the character's shared type; each character only
+ * stores its own health and position.
+ */
+abstract class GameCharacter implements IMovementComponent, IVitalityComponent, ICombatComponent {
+
+    private final CharacterType type;
+    private int health;
+    protected int xPos;
+    protected int yPos;
+
+    /**
+     * Main constructor for characters.
+     * @param type shared stats and sprite of the character.
+     * @param xPos x-coordinate.
+     * @param yPos y-coordinate.
+     */
+    public GameCharacter(CharacterType type, int xPos, int yPos) {
+        this.type = type;
+        this.health = type.getMaxHealth();
+        this.xPos = xPos;
+        this.yPos = yPos;
+    }
+
+    /**
+     * Copy constructor. Used by the monster catalog to spawn
+     * characters from a prototype of each type.
+     * @param gameCharacter character to copy.
+     * @param xPos x-coordinate of the copy.
+     * @param yPos y-coordinate of the copy.
+     */
+    public GameCharacter(GameCharacter gameCharacter, int xPos, int yPos) {
+        type = gameCharacter.getType();
+        health = type.getMaxHealth();
+        this.xPos = xPos;
+        this.yPos = yPos;
+    }
+
+    public CharacterType getType() {
+        return type;
+    }
+
+    public int getMaxHealth() {
+        return type.getMaxHealth();
+    }
+
+    public int getHealth() {
+        return health;
+    }
+
+    public int getMoveSpeed() {
+        return type.getMoveSpeed();
+    }
+
+    public int[] getCoords() {
+        return new int[] {xPos, yPos};
+    }
+
+    public int getXPos() {
+        return xPos;
+    }
+
+    public int getYPos() {
+        return yPos;
+    }
+
+    public int getAttackPower() {
+        return type.getAttackPower();
+    }
+
+    public boolean isAlive() {
+        return health > 0;
+    }
+
+    public ImageIcon getSprite() {
+        return type.getSprite();
+    }
+
+    public void takeDamage(int damage) {
+        health -= damage;
+    }
+
+    // Puts the character back as it was at an earlier point,
+    // used when the game is rewound.
+    protected void restoreState(int x, int y, int health) {
+        xPos = x;
+        yPos = y;
+        this.health = health;
+    }
+
+    // Abstract methods that allow for characters
+    // to have unique movement and attack behaviors.
+    public abstract void move(int x, int y);
+
+    public abstract int attack();
+
+}
+
+/**
+ * Class for player object that is controlled by user.
+ * Simple implementation, allowing for 3 space movement and
+ * dealing damage equal to attack power.
+ */
+class Player extends GameCharacter {
+
+    public static final CharacterType playerType = new CharacterType(-1, "player", 10, 3, 1, "player", 0, 4);
+
+    private int moveRemaining;
+
+    /**
+     * Constructor that allows for spawning player at given coordinates.
+     * @param x x-coordinate for spawn.
+     * @param y y-coordinate for spawn.
+     */
+    public Player(int x, int y) {
+        super(playerType, x, y);
+        moveRemaining = getMoveSpeed();
+    }
+
+    /**
+     * Default constructor
+     */
+    public Player() {
+        this(3, 5);
+    }
+
+    // Updates player location and decrements their movement counter.
+    @Override
+    public void move(int x, int y) {
+        if (ableToMove()) {
+            xPos = x;
+            yPos = y;
+            moveRemaining--;
+        }
+    }
+
+    public boolean ableToMove() {
+        return moveRemaining > 0;
+    }
+
+    public int getMoveRemaining() {
+        return moveRemaining;
+    }
+
+    public void newTurn() {
+        moveRemaining = getMoveSpeed();
+    }
+
+    // Same as the character's, plus the moves left this turn.
+    public void restoreState(int x, int y, int health, int moveRemaining) {
+        restoreState(x, y, health);
+        this.moveRemaining = moveRemaining;
+    }
+
+    @Override
+    public int attack() {
+        return getAttackPower();
+    }
+}
+
+/**
+ * A monster of any type in the monster catalog.
+ * Moves freely when told to and attacks with its type's power.
+ */
+class Monster extends GameCharacter {
+
+    /**
+     * Constructor for a catalog prototype, which is never placed
+     * on a board.
+     * @param type the monster's type.
+     */
+    public Monster(CharacterType type) {
+        super(type, 0, 0);
+    }
+
+    /**
+     * Copy constructor, spawning a copy of the prototype.
+     * @param prototype monster to copy.
+     * @param x x-coordinate for spawn.
+     * @param y y-coordinate for spawn.
+     */
+    public Monster(Monster prototype, int x, int y) {
+        super(prototype, x, y);
+    }
+
+    @Override
+    public void move(int x, int y) {
+        xPos = x;
+        yPos = y;
+    }
+
+    // Monsters have no move budget; the scheduler decides when they act.
+    public boolean ableToMove() {
+        return true;
+    }
+
+    @Override
+    public int attack() {
+        return getAttackPower();
+    }
+}
+
+/**
+ * Class that loads the monster types from the data file and
+ * spawns monsters by copying a prototype of each type.
+ */
+class MonsterCatalog {
+
+    private static String catalogFile = "data/monsters.txt";
+    private static ArrayList<CharacterType> types = new ArrayList<>();
+    private static Map<String, Monster> prototypes = new HashMap<>();
+    private static int totalSpawnWeight;
+    private static boolean catalogLoaded = false;
+
+    // Reads the catalog if it hasn't been loaded already.
+    // Lines are "name, maxHealth, moveSpeed, attackPower, sprite, spawnWeight, lightRadius";
+    // blank lines and lines starting with # are skipped.
+    public static synchronized void loadCatalog() {
+        if (catalogLoaded)
+            return;
+        try (BufferedReader reader = new BufferedReader(
+            new InputStreamReader(AssetPack.openStream(catalogFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("\\s*,\\s*");
+                if (fields.length != 7)
+                    throw new IllegalStateException("Bad monster catalog line: " + line);
+                CharacterType type = new CharacterType(types.size(), fields[0], Integer.parseInt(fields[1]),
+                    Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), fields[4], Integer.parseInt(fields[5]),
+                    Integer.parseInt(fields[6]));
+                types.add(type);
+                prototypes.put(type.getName(), new Monster(type));
+                totalSpawnWeight += type.getSpawnWeight();
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not load monster catalog " + catalogFile, e);
+        }
+        catalogLoaded = true;
+    }
+
+    public static CharacterType getType(int id) {
+        loadCatalog();
+        return types.get(id);
+    }
+
+    public static int getNumberOfTypes() {
+        loadCatalog();
+        return types.size();
+    }
+
+    // Spawns a new monster of the named type at the given tile.
+    public static Monster spawn(String name, int x, int y) {
+        loadCatalog();
+        Monster prototype = prototypes.get(name);
+        if (prototype == null)
+            throw new IllegalArgumentException("Unknown monster type: " + name);
+        return new Monster(prototype, x, y);
+    }
+
+    // Spawns a monster of a type chosen by spawn weight.
+    public static Monster spawnRandom(Random random, int x, int y) {
+        loadCatalog();
+        int roll = random.nextInt(totalSpawnWeight);
+        for (CharacterType type : types) {
+            roll -= type.getSpawnWeight();
+            if (roll < 0)
+                return spawn(type.getName(), x, y);
+        }
+        return spawn(types.get(types.size() - 1).getName(), x, y);
+    }
+
+}
+
+/**
+ * Class that loads the sprites from file and houses
+ * them in a hash map for retrieval.
+ */
+class SpriteGenerator {
+
+    public static Map<String, ImageIcon> spriteList = new HashMap<>();
+    private static String[] spriteLabels = new String[] {
+        "player",
+        "wight",
+        "moth"
+    };
+    private static boolean spritesLoaded = false;
+
+    // Loads the sprites into hash map if they
+    // haven't been loaded already.
+    public static void loadSprites() {
+        if (spritesLoaded)
+            return;
+        String spriteFile = "sprites/";
+        for (String label : spriteLabels) {
+            try {
+                spriteList.put(label, new ImageIcon(AssetPack.readImage(spriteFile + label + ".png")));
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        spritesLoaded = true;
+    }
+
+    public static ImageIcon getSprite(String sprite) {
+        return spriteList.get(sprite);
+    }
+
+}
+
+/**
+ * Copies of sprite and icon images scaled to each tile size in use,
+ * in the display's own pixel format, so drawing them each frame is a
+ * plain copy instead of a scale and a format conversion.
+ * The art is drawn for the tiles of the standard window; other tile
+ * sizes get copies scaled to match. Copies asked for with get are
+ * built on a background thread and the caller scales the original
+ * itself until then. Only the most recently used tile sizes are kept,
+ * so resizing the window drops the copies for sizes no longer shown.
+ */
+class SpriteCache {
+
+    // Tile side the art was drawn for.
+    public static final int artTileSize = ChelonTwoMain.windowSide / GameBoard.boardSide;
+    public static final int defaultZoomLevels = 2;
+
+    private final int maxZoomLevels;
+    private final Runnable variantReady;
+    // Scaled copies by tile size, least recently used size first.
+    private final LinkedHashMap<Integer, Map<Image, BufferedImage>> zoomLevels =
+        new LinkedHashMap<>(8, 0.75f, true);
+    private final Map<Integer, Set<Image>> pending = new HashMap<>();
+    private ExecutorService builder;
+
+    /**
+     * Constructor
+     * @param maxZoomLevels number of tile sizes to keep copies for.
+     * @param variantReady run on the EDT each time a copy has been
+     *                     built in the background; may be null.
+     */
+    public SpriteCache(int maxZoomLevels, Runnable variantReady) {
+        this.maxZoomLevels = maxZoomLevels;
+        this.variantReady = variantReady;
+    }
+
+    // A length in art pixels scaled to the given tile size.
+    public static int scaled(int length, int tileSize) {
+        return Math.max(1, (int) Math.round((double) length * tileSize / artTileSize));
+    }
+
+    // Returns the image scaled to the tile size, or null if the copy
+    // is not built yet, in which case building it is started.
+    public synchronized Image get(Image source, int tileSize) {
+        Map<Image, BufferedImage> variants = zoomLevel(tileSize);
+        BufferedImage variant = variants.get(source);
+        if (variant != null)
+            return variant;
+        Set<Image> waiting = pending.computeIfAbsent(tileSize,
+            size -> Collections.newSetFromMap(new IdentityHashMap<>()));
+        if (waiting.add(source))
+            builder().execute(() -> build(source, tileSize, variants));
+        return null;
+    }
+
+    // Same as get, but builds a missing copy on the calling thread.
+    // For renderers off the EDT, where waiting for it is fine.
+    public BufferedImage getNow(Image source, int tileSize) {
+        Map<Image, BufferedImage> variants;
+        synchronized (this) {
+            variants = zoomLevel(tileSize);
+            BufferedImage variant = variants.get(source);
+            if (variant != null)
+                return variant;
+        }
+        BufferedImage variant = scale(source, scaled(source.getWidth(null), tileSize), scaled(source.getHeight(null), tileSize));
+        synchronized (this) {
+            variants.put(source, variant);
+        }
+        return variant;
+    }
+
+    public synchronized int getNumberOfZoomLevels() {
+        return zoomLevels.size();
+    }
+
+    // Copies for the tile size, evicting the least recently used
+    // sizes if this one is new.
+    private Map<Image, BufferedImage> zoomLevel(int tileSize) {
+        Map<Image, BufferedImage> variants = zoomLevels.get(tileSize);
+        if (variants != null)
+            return variants;
+        variants = new IdentityHashMap<>();
+        zoomLevels.put(tileSize, variants);
+        Iterator<Integer> leastRecent = zoomLevels.keySet().iterator();
+        while (zoomLevels.size() > maxZoomLevels) {
+            pending.remove(leastRecent.next());
+            leastRecent.remove();
+        }
+        return variants;
+    }
+
+    // Runs on the builder thread. A copy for a size that has been
+    // evicted in the meantime goes into the evicted map and is dropped.
+    private void build(Image source, int tileSize, Map<Image, BufferedImage> variants) {
+        BufferedImage variant = scale(source, scaled(source.getWidth(null), tileSize), scaled(source.getHeight(null), tileSize));
+        synchronized (this) {
+            variants.put(source, variant);
+            Set<Image> waiting = pending.get(tileSize);
+            if (waiting != null)
+                waiting.remove(source);
+        }
+        if (variantReady != null)
+            EventQueue.invokeLater(variantReady);
+    }
+
+    private ExecutorService builder() {
+        if (builder == null) {
+            builder = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "sprite-cache");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return builder;
+    }
+
+    // Scales in steps of at most half, so large reductions still
+    // average every source pixel instead of skipping most of them.
+    private static BufferedImage scale(Image source, int targetWidth, int targetHeight) {
+        Image current = source;
+        int width = source.getWidth(null);
+        int height = source.getHeight(null);
+        BufferedImage step;
+        do {
+            width = (width / 2 >= targetWidth) ? width / 2 : targetWidth;
+            height = (height / 2 >= targetHeight) ? height / 2 : targetHeight;
+            step = compatibleImage(width, height);
+            Graphics2D g = step.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(current, 0, 0, width, height, null);
+            g.dispose();
+            current = step;
+        } while (width != targetWidth || height != targetHeight);
+        return step;
+    }
+
+    // An image in the screen's pixel format, or a premultiplied one
+    // when there is no screen.
+    private static BufferedImage compatibleImage(int width, int height) {
+        if (GraphicsEnvironment.isHeadless())
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+            .getDefaultConfiguration().createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+    }
+}
+
+/**
+ * Class that loads and houses the images of the game that
+ * are not character sprites.
+ */
+class ImageLoader {
+
+    private static String screenFile = "screen_images/";
+    public static String frameIconImage = screenFile + "frame_icon.png";
+    public static String titleScreenImage = screenFile + "title_screen.png";
+    public static String instructionScreenImage = screenFile + "instructions.png";
+    public static String gameScreenImage = screenFile + "game_screen.png";
+    public static String gameOverScreenImage = screenFile + "game_over.png";
+    public static String gameWinScreenOneImage = screenFile + "win_screen_one.png";
+    public static String gameWinScreenTwoImage = screenFile + "win_screen_two.png";
+    private static ArrayList<String> heartValues =
+        new ArrayList<>(Arrays.asList(
+            "one", "two", "three", "four", "five", "six", "seven", "eight", "nine", "ten"));
+
+
+    // Heart images are loaded once and shared, so their scaled
+    // copies can be found in a sprite cache.
+    private static Map<Integer, BufferedImage> heartImages = new HashMap<>();
+
+    public static synchronized BufferedImage getPlayerHeartsImage(int health) {
+        return heartImages.computeIfAbsent(health,
+            h -> getImageAsBuffered(screenFile + heartValues.get(h - 1) + "_hearts.png"));
+    }
+
+    public static ImageIcon getPlayerHeartsIcon(int health) {
+        return new ImageIcon(getPlayerHeartsImage(health));
+    }
+
+    // Returns the image from file in the form of a JLabel
+    public static JLabel imageToAdd(String filepath) {
+        try {
+            BufferedImage image = AssetPack.readImage(filepath);
+            return new JLabel(new ImageIcon(image));
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        return new JLabel();
+    }
+
+    // Returns image as a buffered image
+    public static BufferedImage getImageAsBuffered(String filepath) {
+        try {
+            return AssetPack.readImage(filepath);
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+}
+
+/**
+ * Class that handles the loading and initialization of
+ * sound clips used in the game.
+ */
+class SoundSystem {
+
+    private static String soundFile = "sounds/";
+    private static String playerHitFile = soundFile + "player_hit.wav";
+    private static String enemyHitFile = soundFile + "enemy_hit.wav";
+    private static String necroLaughFile = soundFile + "necro_laugh.wav";
+    private static String introFile = soundFile + "intro.wav";
+    private static String gameThemeFile = soundFile + "game_theme.wav";
+    private static String gameWinFile = soundFile + "game_win.wav";
+    // Sound effects, decoded once into the mixer's format.
+    private static short[] playerHit, enemyHit, necroLaugh;
+    private static AudioMixer mixer;
+
+    // Starts a background thread that plays sound effects for events
+    // published on the bus, so the game loop never waits on audio.
+    // Effects and music are mixed onto a single output line.
+    public static void listenTo(GameEventBus eventBus) {
+        loadEffects();
+        mixer = new AudioMixer(AudioMixer.defaultVoices);
+        mixer.start();
+        GameEventConsumer consumer = eventBus.subscribe();
+        // Parked between events rather than polling for them.
+        Thread soundThread = new Thread(() -> {
+            while (true)
+                consumer.pollOrWait(SoundSystem::playEventSound);
+        }, "sound-events");
+        soundThread.setDaemon(true);
+        soundThread.start();
+    }
+
+    private static void playEventSound(GameEventType type, int x, int y, int value) {
+        if (type == GameEventType.PLAYER_HIT)
+            mixer.play(playerHit);
+        else if (type == GameEventType.ENEMY_HIT)
+            mixer.play(enemyHit);
+        else if (type == GameEventType.GAME_OVER)
+            mixer.play(necroLaugh);
+    }
+
+    // Decodes the sound effects if they haven't been loaded already.
+    private static void loadEffects() {
+        if (playerHit != null)
+            return;
+        playerHit = AudioMixer.decode(playerHitFile);
+        enemyHit = AudioMixer.decode(enemyHitFile);
+        necroLaugh = AudioMixer.decode(necroLaughFile);
+    }
+
+    // Methods that stream the themes through the mixer. Switching
+    // themes crossfades from whatever is currently playing.
+    public static void playIntro() {
+        playMusic(introFile, false);
+    }
+
+    public static void playGameTheme() {
+        playMusic(gameThemeFile, true);
+    }
+
+    public static void playGameWin() {
+        playMusic(gameWinFile, true);
+    }
+
+    public static void stopMusic() {
+        if (mixer != null)
+            mixer.playMusic(null);
+    }
+
+    private static void playMusic(String musicFile, boolean loop) {
+        if (mixer == null || !mixer.isRunning())
+            return;
+        MusicStream music = new MusicStream(musicFile, loop);
+        music.start();
+        mixer.playMusic(music);
+    }
+
+}
+
+/**
+ * Software mixer that sums any number of overlapping sound effects
+ * onto one output line, instead of opening a line per effect.
+ * Effects are decoded up front into 16-bit stereo samples.
+ * Mixing runs on one dedicated thread in small blocks, so latency is
+ * bounded by the line buffer. When every voice is busy, the oldest
+ * voice is stolen for the new sound.
+ * The mix method can be called directly to mix into a byte buffer
+ * without any audio device.
+ */
+class AudioMixer {
+
+    public static final AudioFormat mixFormat = new AudioFormat(44100f, 16, 2, true, false);
+    public static final int defaultVoices = 16;
+    // 512 frames is about 12 ms at 44.1 kHz.
+    public static final int framesPerBlock = 512;
+    private static final int blocksBuffered = 2;
+    private static final int maxPendingSounds = 64;
+
+    private final short[][] voiceSamples;
+    private final int[] voicePositions;
+    private final long[] voiceStarted;
+    // One second of fade between music tracks.
+    private static final int crossfadeFrames = 44100;
+
+    private final ArrayBlockingQueue<short[]> pending = new ArrayBlockingQueue<>(maxPendingSounds);
+    private final int[] accumulator = new int[framesPerBlock * 2];
+    private final short[] musicSamples = new short[framesPerBlock * 2];
+    private final short[] fadingSamples = new short[framesPerBlock * 2];
+    // Holds the next track to switch to; an empty Optional means silence.
+    private final AtomicReference<Optional<MusicStream>> musicRequest = new AtomicReference<>();
+    private MusicStream music;
+    private MusicStream fadingMusic;
+    private int fadePosition;
+    private long soundsStarted;
+    private long voicesStolen;
+    private volatile boolean running;
+
+    /**
+     * Constructor
+     * @param maxVoices most sounds that can play at once.
+     */
+    public AudioMixer(int maxVoices) {
+        voiceSamples = new short[maxVoices][];
+        voicePositions = new int[maxVoices];
+        voiceStarted = new long[maxVoices];
+    }
+
+    // Queues a sound to start on the next block. Safe to call from
+    // any thread. The sound is dropped if the queue is full.
+    public boolean play(short[] samples) {
+        if (samples == null || samples.length == 0)
+            return false;
+        return pending.offer(samples);
+    }
+
+    // Opens the output line and starts the mixing thread.
+    // If no line is available, sounds are silently dropped.
+    public void start() {
+        SourceDataLine line;
+        try {
+            line = AudioSystem.getSourceDataLine(mixFormat);
+            line.open(mixFormat, framesPerBlock * blocksBuffered * mixFormat.getFrameSize());
+            line.start();
+        }
+        catch (LineUnavailableException | IllegalArgumentException e) {
+            e.printStackTrace();
+            return;
+        }
+        running = true;
+        Thread mixThread = new Thread(() -> {
+            byte[] block = new byte[framesPerBlock * mixFormat.getFrameSize()];
+            while (running) {
+                mix(block, framesPerBlock);
+                // Blocks once the line buffer is full, which paces the loop.
+                line.write(block, 0, block.length);
+            }
+            line.drain();
+            line.close();
+        }, "audio-mixer");
+        mixThread.setDaemon(true);
+        mixThread.start();
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // Switches to a new music track on the next block, fading out
+    // the current one. Pass null to fade to silence. A track still
+    // waiting to be picked up is replaced and closed.
+    public void playMusic(MusicStream newMusic) {
+        Optional<MusicStream> replaced = musicRequest.getAndSet(Optional.ofNullable(newMusic));
+        if (replaced != null)
+            replaced.ifPresent(MusicStream::close);
+    }
+
+    // Mixes the next block of every active voice into the buffer as
+    // 16-bit little-endian stereo. Returns the number of active voices.
+    public int mix(byte[] out, int frames) {
+        startPendingVoices();
+        switchMusic();
+        int samples = Math.min(frames * 2, out.length / 2);
+        int active = 0;
+        for (int offset = 0; offset < samples; offset += accumulator.length) {
+            int length = Math.min(accumulator.length, samples - offset);
+            Arrays.fill(accumulator, 0, length, 0);
+            active = addVoices(length);
+            addMusic(length);
+            for (int i = 0; i < length; i++) {
+                int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, accumulator[i]));
+                out[(offset + i) * 2] = (byte) sample;
+                out[(offset + i) * 2 + 1] = (byte) (sample >> 8);
+            }
+        }
+        return active;
+    }
+
+    public long getSoundsStarted() {
+        return soundsStarted;
+    }
+
+    public long getVoicesStolen() {
+        return voicesStolen;
+    }
+
+    // Sums the next samples of every voice into the accumulator and
+    // frees the voices that have finished.
+    private int addVoices(int length) {
+        int active = 0;
+        for (int v = 0; v < voiceSamples.length; v++) {
+            short[] samples = voiceSamples[v];
+            if (samples == null)
+                continue;
+            int position = voicePositions[v];
+            int count = Math.min(length, samples.length - position);
+            for (int i = 0; i < count; i++)
+                accumulator[i] += samples[position + i];
+            voicePositions[v] = position + count;
+            if (voicePositions[v] >= samples.length)
+                voiceSamples[v] = null;
             else
-                createdLevel.add(new Wight(spawnLocations.get(i)[0], spawnLocations.get(i)[1]));
+                active++;
         }
-        return createdLevel;
+        return active;
+    }
+
+    // Adds the music, crossfading if a track is fading out.
+    // Tracks that have not buffered enough yet play silence
+    // rather than holding up the mix.
+    private void addMusic(int length) {
+        int musicCount = (music == null) ? 0 : music.read(musicSamples, length);
+        if (fadingMusic == null) {
+            for (int i = 0; i < musicCount; i++)
+                accumulator[i] += musicSamples[i];
+        }
+        else {
+            int fadingCount = fadingMusic.read(fadingSamples, length);
+            for (int i = 0; i < length; i++) {
+                long gain = Math.min(crossfadeFrames, fadePosition + i / 2);
+                if (i < musicCount)
+                    accumulator[i] += (int) (musicSamples[i] * gain / crossfadeFrames);
+                if (i < fadingCount)
+                    accumulator[i] += (int) (fadingSamples[i] * (crossfadeFrames - gain) / crossfadeFrames);
+            }
+            fadePosition += length / 2;
+            if (fadePosition >= crossfadeFrames) {
+                fadingMusic.close();
+                fadingMusic = null;
+            }
+        }
+        if (music != null && music.isFinished()) {
+            music.close();
+            music = null;
+        }
+    }
+
+    // Picks up a requested track change.
+    private void switchMusic() {
+        Optional<MusicStream> request = musicRequest.getAndSet(null);
+        if (request == null)
+            return;
+        if (fadingMusic != null)
+            fadingMusic.close();
+        fadingMusic = music;
+        music = request.orElse(null);
+        fadePosition = 0;
+    }
+
+    // Moves queued sounds into free voices, stealing the oldest
+    // voice when all of them are busy.
+    private void startPendingVoices() {
+        short[] samples;
+        while ((samples = pending.poll()) != null) {
+            int voice = -1;
+            for (int v = 0; v < voiceSamples.length; v++) {
+                if (voiceSamples[v] == null) {
+                    voice = v;
+                    break;
+                }
+                if (voice == -1 || voiceStarted[v] < voiceStarted[voice])
+                    voice = v;
+            }
+            if (voiceSamples[voice] != null)
+                voicesStolen++;
+            voiceSamples[voice] = samples;
+            voicePositions[voice] = 0;
+            voiceStarted[voice] = soundsStarted++;
+        }
+    }
+
+    // Reads an audio asset and converts it to interleaved samples in
+    // the mix format. Mono files are copied to both channels.
+    public static short[] decode(String audioFile) {
+        try (AudioInputStream source = AudioSystem.getAudioInputStream(AssetPack.openStream(audioFile))) {
+            AudioFormat sourceFormat = source.getFormat();
+            int channels = sourceFormat.getChannels();
+            AudioFormat pcmFormat = new AudioFormat(mixFormat.getSampleRate(), 16, channels, true, false);
+            AudioInputStream pcm = AudioSystem.getAudioInputStream(pcmFormat, source);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = pcm.read(buffer)) > 0)
+                bytes.write(buffer, 0, read);
+            byte[] data = bytes.toByteArray();
+            int frames = data.length / (2 * channels);
+            short[] samples = new short[frames * 2];
+            for (int frame = 0; frame < frames; frame++) {
+                for (int c = 0; c < 2; c++) {
+                    int index = (frame * channels + Math.min(c, channels - 1)) * 2;
+                    samples[frame * 2 + c] = (short) ((data[index] & 0xFF) | (data[index + 1] << 8));
+                }
+            }
+            return samples;
+        }
+        catch (UnsupportedAudioFileException | IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+        return new short[0];
+    }
+
+}
+
+/**
+ * Music track streamed from the assets through a small ring buffer.
+ * A background thread decodes the file into the buffer while the
+ * mixer reads from it, so memory stays the same however long the
+ * track is. Looping tracks reopen the file as soon as it ends and
+ * keep filling the same buffer, so there is no gap at the seam.
+ */
+class MusicStream {
+
+    // Half a second of stereo audio.
+    private static final int bufferFrames = 22050;
+    private static final long fullWaitNanos = 5_000_000;
+
+    private final String musicFile;
+    private final boolean loop;
+    private final short[] ring = new short[bufferFrames * 2];
+    // Total samples written and read. Only the loader writes
+    // "written" and only the mixer writes "read".
+    private volatile long written;
+    private volatile long read;
+    private volatile boolean endOfTrack;
+    private volatile boolean closed;
+
+    /**
+     * Constructor
+     * @param musicFile audio asset to stream.
+     * @param loop whether to start over when the track ends.
+     */
+    public MusicStream(String musicFile, boolean loop) {
+        this.musicFile = musicFile;
+        this.loop = loop;
+    }
+
+    // Starts the loader thread.
+    public void start() {
+        Thread loader = new Thread(this::fill, "music-" + musicFile);
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    public void close() {
+        closed = true;
+    }
+
+    // True once the whole track has been read and it does not loop.
+    public boolean isFinished() {
+        return endOfTrack && read == written;
+    }
+
+    // Copies up to count buffered samples. Never waits for the loader.
+    public int read(short[] destination, int count) {
+        long readPosition = read;
+        int available = (int) Math.min(count, written - readPosition);
+        for (int i = 0; i < available; i++)
+            destination[i] = ring[(int) ((readPosition + i) % ring.length)];
+        read = readPosition + available;
+        return available;
+    }
+
+    // Loader thread: decodes the file into the ring until closed.
+    private void fill() {
+        byte[] bytes = new byte[8192];
+        do {
+            try (AudioInputStream source = AudioSystem.getAudioInputStream(AssetPack.openStream(musicFile))) {
+                int channels = source.getFormat().getChannels();
+                AudioFormat pcmFormat = new AudioFormat(AudioMixer.mixFormat.getSampleRate(), 16, channels, true, false);
+                AudioInputStream pcm = AudioSystem.getAudioInputStream(pcmFormat, source);
+                int frameSize = 2 * channels;
+                int count;
+                while (!closed && (count = pcm.readNBytes(bytes, 0, bytes.length - bytes.length % frameSize)) > 0) {
+                    for (int offset = 0; offset + frameSize <= count && !closed; offset += frameSize) {
+                        short left = (short) ((bytes[offset] & 0xFF) | (bytes[offset + 1] << 8));
+                        int rightOffset = offset + 2 * Math.min(1, channels - 1);
+                        short right = (short) ((bytes[rightOffset] & 0xFF) | (bytes[rightOffset + 1] << 8));
+                        waitForSpace();
+                        ring[(int) (written % ring.length)] = left;
+                        ring[(int) ((written + 1) % ring.length)] = right;
+                        written += 2;
+                    }
+                }
+            }
+            catch (UnsupportedAudioFileException | IOException | IllegalArgumentException e) {
+                e.printStackTrace();
+                break;
+            }
+        } while (loop && !closed);
+        endOfTrack = true;
+    }
+
+    private void waitForSpace() {
+        while (!closed && written + 2 > read + ring.length)
+            LockSupport.parkNanos(fullWaitNanos);
+    }
+}
+
+/**
+ * Single indexed archive holding every sprite, screen, sound and data
+ * file, so the game can start from anywhere with one file open.
+ * The pack is found through the chelon.assets system property or as
+ * assets.pak on the classpath. A pack on disk is memory-mapped, and
+ * each asset is a slice of the mapping, so nothing is copied until it
+ * is decoded. Without a pack, assets are read as loose files under
+ * src/ in the working directory, with a warning the first time; an
+ * asset missing from both fails with the places that were tried.
+ *
+ * Layout: magic, version and entry count, then per entry its name,
+ * offset and length, then the asset data.
+ */
+class AssetPack {
+
+    public static final String packName = "assets.pak";
+    public static final int magic = 0x4350414B;
+    public static final int version = 1;
+    private static final String looseAssetRoot = "src/";
+
+    private static Map<String, int[]> index = new HashMap<>();
+    private static ByteBuffer data;
+    private static boolean opened = false;
+    private static boolean warnedLoose = false;
+
+    // Finds and indexes the pack if it hasn't been opened already.
+    public static synchronized void open() {
+        if (opened)
+            return;
+        opened = true;
+        try {
+            String packPath = System.getProperty("chelon.assets");
+            URL packResource = AssetPack.class.getResource("/" + packName);
+            if (packPath != null)
+                data = map(Paths.get(packPath));
+            else if (packResource != null && packResource.getProtocol().equals("file"))
+                data = map(Paths.get(packResource.toURI()));
+            else if (packResource != null)
+                data = readFully(packResource);
+            if (data != null)
+                readIndex();
+        }
+        catch (IOException | URISyntaxException e) {
+            e.printStackTrace();
+            data = null;
+            index.clear();
+        }
+    }
+
+    public static boolean isPacked() {
+        open();
+        return data != null;
+    }
+
+    // Returns a read-only view of the asset's bytes, or null if it
+    // is not in the pack.
+    public static synchronized ByteBuffer slice(String name) {
+        open();
+        int[] entry = index.get(name);
+        if (entry == null)
+            return null;
+        ByteBuffer view = data.duplicate();
+        view.position(entry[0]).limit(entry[0] + entry[1]);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    // Opens the asset from the pack, falling back to the loose file.
+    // The stream supports mark and reset, as audio decoding needs.
+    public static InputStream openStream(String name) throws IOException {
+        ByteBuffer asset = slice(name);
+        if (asset != null)
+            return new ByteBufferInputStream(asset);
+        File looseFile = new File(looseAssetRoot + name);
+        warnLoose();
+        if (!looseFile.isFile())
+            throw new FileNotFoundException("Asset " + name + " is not in " + packName + " and "
+                + looseFile.getAbsolutePath() + " does not exist. Build the pack with AssetPacker"
+                + " and put it on the classpath or set -Dchelon.assets.");
+        return new BufferedInputStream(new FileInputStream(looseFile));
+    }
+
+    // Says once where assets are being read from when there is no
+    // pack, since loose files are found relative to the working
+    // directory.
+    private static synchronized void warnLoose() {
+        if (warnedLoose)
+            return;
+        warnedLoose = true;
+        System.err.println("Warning: no " + packName + " found, reading loose assets from "
+            + new File(looseAssetRoot).getAbsolutePath());
+    }
+
+    public static BufferedImage readImage(String name) throws IOException {
+        try (InputStream input = openStream(name)) {
+            BufferedImage image = ImageIO.read(input);
+            if (image == null)
+                throw new IOException("Not an image: " + name);
+            return image;
+        }
+    }
+
+    private static ByteBuffer map(Path packFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(packFile)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    // Packs inside a jar cannot be mapped, so they are read once.
+    private static ByteBuffer readFully(URL packResource) throws IOException {
+        try (InputStream input = packResource.openStream()) {
+            byte[] bytes = input.readAllBytes();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+            buffer.put(bytes).flip();
+            return buffer;
+        }
+    }
+
+    private static void readIndex() throws IOException {
+        ByteBuffer header = data.duplicate();
+        if (header.getInt() != magic || header.getInt() != version)
+            throw new IOException("Not an asset pack");
+        int count = header.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[header.getShort() & 0xFFFF];
+            header.get(name);
+            index.put(new String(name, StandardCharsets.UTF_8), new int[] {header.getInt(), header.getInt()});
+        }
+    }
+}
+
+/**
+ * InputStream over a ByteBuffer, reading the buffer in place.
+ */
+class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
     }
 
-    private static void resetSpawnLocations() {
-        Collections.shuffle(spawnLocations);
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (length == 0)
+            return 0;
+        if (!buffer.hasRemaining())
+            return -1;
+        int count = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, count);
+        return count;
     }
-}
 
-/**
- * Component that dictates motion methods
- * for the object it is attached to.
- */
-interface IMovementComponent {
-    int getMoveSpeed();
-    int[] getCoords();
-    void move(int x, int y);
-    boolean ableToMove();
-}
+    @Override
+    public long skip(long count) {
+        int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
 
-/**
- * Methods for health and taking damage.
- */
-interface IVitalityComponent {
-    int getMaxHealth();
-    int getHealth();
-    void takeDamage(int damage);
-    boolean isAlive();
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        buffer.mark();
+    }
+
+    @Override
+    public synchronized void reset() {
+        buffer.reset();
+    }
 }
 
 /**
- * Combat methods - dealing damage.
+ * Build step that packs the game's assets into one archive.
+ * Put the output on the classpath, or point -Dchelon.assets at it.
+ *
+ * Usage: java AssetPacker [sourceDir] [outputFile]
+ * Defaults to packing src/ into assets.pak.
  */
-interface ICombatComponent {
-    int getAttackPower();
-    int attack();
+class AssetPacker {
+
+    // Folders under the source directory that hold assets.
+    private static final String[] assetFolders = {"sprites", "screen_images", "sounds", "data"};
+
+    public static void main(String[] args) throws IOException {
+        File sourceDirectory = new File((args.length > 0) ? args[0] : "src");
+        File outputFile = new File((args.length > 1) ? args[1] : AssetPack.packName);
+        ArrayList<String> names = new ArrayList<>();
+        for (String folder : assetFolders) {
+            File[] files = new File(sourceDirectory, folder).listFiles();
+            if (files == null)
+                continue;
+            for (File file : files) {
+                // Skips editor backups such as game_screen.png~
+                if (file.isFile() && !file.getName().endsWith("~"))
+                    names.add(folder + "/" + file.getName());
+            }
+        }
+        Collections.sort(names);
+
+        int headerSize = 12;
+        for (String name : names)
+            headerSize += 2 + name.getBytes(StandardCharsets.UTF_8).length + 8;
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)))) {
+            output.writeInt(AssetPack.magic);
+            output.writeInt(AssetPack.version);
+            output.writeInt(names.size());
+            int offset = headerSize;
+            for (String name : names) {
+                int length = (int) new File(sourceDirectory, name).length();
+                byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                output.writeShort(nameBytes.length);
+                output.write(nameBytes);
+                output.writeInt(offset);
+                output.writeInt(length);
+                offset += length;
+            }
+            for (String name : names)
+                Files.copy(new File(sourceDirectory, name).toPath(), output);
+        }
+        System.out.printf("Packed %d assets into %s (%,d bytes)%n", names.size(), outputFile, outputFile.length());
+    }
 }
 
 /**
- * Abstract class that represents a character in the game world.
- * Uses the movement, combat, and vitality interfaces to dictate
- * the functionality a character will have.
+ * Outcome of one finished run: how far the player got, how long it
+ * took, how much damage they took and how many of each monster type
+ * they killed.
  */
-abstract class GameCharacter implements IMovementComponent, IVitalityComponent, ICombatComponent {
+class RunRecord {
 
-    private int maxHealth;
-    private int health;
-    private int moveSpeed;
-    protected int moveRemaining;
-    private int attackPower;
-    protected int xPos;
-    protected int yPos;
-    private boolean alive;
-    private ImageIcon sprite;
+    private final long finishedAt;
+    private final boolean won;
+    private final int level;
+    private final int turns;
+    private final int damageTaken;
+    private final long durationMillis;
+    private final int[] kills;
 
     /**
-     * Main constructor for characters.
-     * @param maxHealth max health of character.
-     * @param moveSpeed amount of spaces of movement per turn.
-     * @param attackPower damage dealt with single attack.
-     * @param xPos x-coordinate.
-     * @param yPos y-coordinate.
-     * @param sprite sprite icon of character.
+     * @param finishedAt wall clock time the run ended, in epoch millis.
+     * @param won whether the last level was cleared.
+     * @param level level reached.
+     * @param turns monster turns played.
+     * @param damageTaken total damage dealt to the player.
+     * @param durationMillis time from start to finish.
+     * @param kills kills per monster type, indexed by type id.
      */
-    public GameCharacter(int maxHealth, int moveSpeed, int attackPower, int xPos, int yPos, ImageIcon sprite) {
-        this.maxHealth = maxHealth;
-        this.health = maxHealth;
-        this.moveSpeed = moveSpeed;
-        this.moveRemaining = moveSpeed;
-        this.attackPower = attackPower;
-        this.xPos = xPos;
-        this.yPos = yPos;
-        alive = true;
-        this.sprite = sprite;
+    public RunRecord(long finishedAt, boolean won, int level, int turns,
+                     int damageTaken, long durationMillis, int[] kills) {
+        this.finishedAt = finishedAt;
+        this.won = won;
+        this.level = level;
+        this.turns = turns;
+        this.damageTaken = damageTaken;
+        this.durationMillis = durationMillis;
+        this.kills = kills.clone();
     }
 
-    /**
-     * Copy constructor. Can be used in the future for a generic
-     * character spawn factory object, using the passed in
-     * character as a prototype.
-     * @param gameCharacter character to copy.
-     */
-    public GameCharacter(GameCharacter gameCharacter) {
-        maxHealth = gameCharacter.getMaxHealth();
-        health = gameCharacter.getMaxHealth();
-        moveSpeed = gameCharacter.getMoveSpeed();
-        moveRemaining = gameCharacter.getMoveSpeed();
-        attackPower = gameCharacter.getAttackPower();
-        xPos = gameCharacter.getCoords()[0];
-        yPos = gameCharacter.getCoords()[1];
-        sprite = gameCharacter.getSprite();
-        alive = true;
+    public long getFinishedAt() {
+        return finishedAt;
     }
 
-    public int getMaxHealth() {
-        return maxHealth;
+    public boolean isWon() {
+        return won;
     }
 
-    public int getHealth() {
-        return health;
+    public int getLevel() {
+        return level;
     }
 
-    public int getMoveSpeed() {
-        return moveSpeed;
+    public int getTurns() {
+        return turns;
     }
 
-    public int[] getCoords() {
-        return new int[] {xPos, yPos};
+    public int getDamageTaken() {
+        return damageTaken;
     }
 
-    public int getAttackPower() {
-        return attackPower;
+    public long getDurationMillis() {
+        return durationMillis;
     }
 
-    public boolean isAlive() {
-        return alive;
+    public int getKills(int typeId) {
+        return (typeId < kills.length) ? kills[typeId] : 0;
     }
 
-    private void dead() {
-        alive = false;
+    public int getNumberOfKillTypes() {
+        return kills.length;
     }
 
-    public ImageIcon getSprite() {
-        return sprite;
+    public int getTotalKills() {
+        int total = 0;
+        for (int count : kills)
+            total += count;
+        return total;
     }
 
-    public void takeDamage(int damage) {
-        health -= damage;
-        if (health <= 0)
-            dead();
+    @Override
+    public String toString() {
+        return String.format("%s level %d, %d turns, %d damage taken, %d kills, %.1f s",
+            won ? "won" : "lost", level, turns, damageTaken, getTotalKills(), durationMillis / 1000.0);
     }
+}
 
-    public boolean ableToMove() {
-        return moveRemaining > 0;
-    }
+/**
+ * Tallies a run from the events the model publishes: damage taken
+ * from PLAYER_HIT and kills per type from MONSTER_DIED. Hits and kills
+ * undone by a rewind are taken off again, and added back on replay.
+ */
+class RunTracker implements GameEventListener {
 
-    public void newTurn() {
-        moveRemaining = moveSpeed;
+    private final long startNanos = System.nanoTime();
+    private int damageTaken;
+    private int[] kills = new int[MonsterCatalog.getNumberOfTypes()];
+
+    @Override
+    public void onEvent(GameEventType type, int x, int y, int value) {
+        switch (type) {
+            case PLAYER_HIT:
+            case PLAYER_HIT_REDONE:
+                damageTaken += value;
+                break;
+            case PLAYER_HIT_UNDONE:
+                damageTaken -= value;
+                break;
+            case MONSTER_DIED:
+            case MONSTER_DIED_REDONE:
+                countKill(value, 1);
+                break;
+            case MONSTER_DIED_UNDONE:
+                countKill(value, -1);
+                break;
+            default:
+                break;
+        }
     }
 
-    // Abstract methods that allow for characters
-    // to have unique movement and attack behaviors.
-    public abstract void move(int x, int y);
+    private void countKill(int typeId, int count) {
+        if (typeId >= kills.length)
+            kills = Arrays.copyOf(kills, typeId + 1);
+        kills[typeId] += count;
+    }
 
-    public abstract int attack();
+    // Builds the record for the run as it stands.
+    public RunRecord finish(GameModel gameModel, boolean won) {
+        return new RunRecord(System.currentTimeMillis(), won, gameModel.getCurrentLevel(),
+            gameModel.getTurnsTaken(), damageTaken, (System.nanoTime() - startNanos) / 1_000_000, kills);
+    }
+}
 
+/**
+ * Values of a run that percentiles can be taken over.
+ */
+enum RunMetric {
+    LEVEL,
+    TURNS,
+    DAMAGE_TAKEN,
+    KILLS,
+    DURATION_MILLIS
 }
 
 /**
- * Class for player object that is controlled by user.
- * Simple implementation, allowing for 3 space movement and
- * dealing damage equal to attack power.
+ * In-memory indexes over every run in the log.
+ * Runs are stored column by column in primitive arrays, so millions
+ * of them take a few dozen bytes each. A min-heap keeps the best runs
+ * for the leaderboard, and each metric keeps a sorted copy of its
+ * column that is rebuilt only when queried after new runs came in.
  */
-class Player extends GameCharacter {
+class RunIndex {
+
+    public static final int leaderboardSize = 100;
+    private static final int initialCapacity = 1024;
+
+    private int count;
+    private long[] finishedAt = new long[initialCapacity];
+    private long[][] metrics = new long[RunMetric.values().length][initialCapacity];
+    private boolean[] won = new boolean[initialCapacity];
+    // Kills of every run, one after another; killStart marks where
+    // each run's counts begin.
+    private int[] killCounts = new int[initialCapacity];
+    private int[] killStart = new int[initialCapacity + 1];
+    private long[][] sortedMetrics = new long[RunMetric.values().length][];
+    // Run ids of the best runs, worst on top.
+    private final PriorityQueue<Integer> leaders = new PriorityQueue<>(leaderboardSize + 1,
+        (a, b) -> Long.compare(score(a), score(b)));
+
+    public void add(RunRecord record) {
+        if (count == won.length)
+            grow();
+        finishedAt[count] = record.getFinishedAt();
+        won[count] = record.isWon();
+        metrics[RunMetric.LEVEL.ordinal()][count] = record.getLevel();
+        metrics[RunMetric.TURNS.ordinal()][count] = record.getTurns();
+        metrics[RunMetric.DAMAGE_TAKEN.ordinal()][count] = record.getDamageTaken();
+        metrics[RunMetric.KILLS.ordinal()][count] = record.getTotalKills();
+        metrics[RunMetric.DURATION_MILLIS.ordinal()][count] = record.getDurationMillis();
+        int start = killStart[count];
+        int types = record.getNumberOfKillTypes();
+        if (start + types > killCounts.length)
+            killCounts = Arrays.copyOf(killCounts, Math.max(killCounts.length * 2, start + types));
+        for (int type = 0; type < types; type++)
+            killCounts[start + type] = record.getKills(type);
+        killStart[count + 1] = start + types;
+        Arrays.fill(sortedMetrics, null);
+
+        leaders.add(count);
+        if (leaders.size() > leaderboardSize)
+            leaders.poll();
+        count++;
+    }
 
-    /**
-     * Constructor that allows for spawning player at given coordinates.
-     * @param x x-coordinate for spawn.
-     * @param y y-coordinate for spawn.
-     */
-    public Player(int x, int y) {
-        super(10, 3, 1, x, y, SpriteGenerator.getSprite("player"));
+    public int size() {
+        return count;
     }
 
-    /**
-     * Default constructor
-     */
-    public Player() {
-        super(10, 3, 1, 3, 5, SpriteGenerator.getSprite("player"));
+    // Rebuilds the run with the given id from the columns.
+    public RunRecord get(int id) {
+        int[] kills = Arrays.copyOfRange(killCounts, killStart[id], killStart[id + 1]);
+        return new RunRecord(finishedAt[id], won[id], (int) metric(RunMetric.LEVEL, id),
+            (int) metric(RunMetric.TURNS, id), (int) metric(RunMetric.DAMAGE_TAKEN, id),
+            metric(RunMetric.DURATION_MILLIS, id), kills);
     }
 
-    // Updates player location and decrements their movement counter.
-    @Override
-    public void move(int x, int y) {
-        if (ableToMove()) {
-            xPos = x;
-            yPos = y;
-            moveRemaining--;
+    // Best runs first, at most leaderboardSize of them.
+    public ArrayList<RunRecord> leaderboard(int number) {
+        ArrayList<Integer> ids = new ArrayList<>(leaders);
+        ids.sort((a, b) -> Long.compare(score(b), score(a)));
+        ArrayList<RunRecord> best = new ArrayList<>();
+        for (int i = 0; i < Math.min(number, ids.size()); i++)
+            best.add(get(ids.get(i)));
+        return best;
+    }
+
+    // Nearest-rank percentile of the metric over every run.
+    public long percentile(RunMetric metric, double percent) {
+        if (count == 0)
+            return 0;
+        long[] sorted = sortedMetrics[metric.ordinal()];
+        if (sorted == null) {
+            sorted = Arrays.copyOf(metrics[metric.ordinal()], count);
+            Arrays.sort(sorted);
+            sortedMetrics[metric.ordinal()] = sorted;
         }
+        int rank = (int) Math.ceil(percent / 100.0 * count);
+        return sorted[Math.max(0, rank - 1)];
     }
 
-    @Override
-    public int attack() {
-        return getAttackPower();
+    public int getWins() {
+        int wins = 0;
+        for (int id = 0; id < count; id++) {
+            if (won[id])
+                wins++;
+        }
+        return wins;
     }
 
-    public int getXPos() {
-        return xPos;
+    private long metric(RunMetric metric, int id) {
+        return metrics[metric.ordinal()][id];
     }
 
-    public int getYPos() {
-        return yPos;
+    // Ranks runs by win, then level reached, then fewest turns, then
+    // least damage taken, packed into one comparable long.
+    private long score(int id) {
+        long level = Math.min(metric(RunMetric.LEVEL, id), 0xFFFF);
+        long turns = Math.min(metric(RunMetric.TURNS, id), 0xFFFFFF);
+        long damage = Math.min(metric(RunMetric.DAMAGE_TAKEN, id), 0x3FFFFF);
+        return ((won[id] ? 1L : 0L) << 62) | (level << 46) | ((0xFFFFFF - turns) << 22) | (0x3FFFFF - damage);
+    }
+
+    private void grow() {
+        int capacity = won.length * 2;
+        finishedAt = Arrays.copyOf(finishedAt, capacity);
+        for (int i = 0; i < metrics.length; i++)
+            metrics[i] = Arrays.copyOf(metrics[i], capacity);
+        won = Arrays.copyOf(won, capacity);
+        killStart = Arrays.copyOf(killStart, capacity + 1);
     }
 }
 
 /**
- * Monster: Wight (Sentient undead being)
- * Simple implementation with an attack of
- * TWO damage and THREE health.
+ * Append-only log of finished runs.
+ * Each record is written with its length and a CRC32 of its bytes in
+ * a single write, so a crash can at worst leave one torn record at
+ * the end. Opening the log replays every record into a RunIndex and
+ * cuts off anything after the last good one.
+ * Appends go to the OS straight away and survive the process dying;
+ * force() is needed for them to survive the machine going down too.
+ * The log is locked while open, so a second process can't append to
+ * it at the same time and write over the first one's records.
  */
-class Wight extends GameCharacter {
+class RunLog implements Closeable {
+
+    public static final String defaultLogFile = "runs.log";
+    public static final String defaultSimulatedLogFile = "simulated-runs.log";
+    private static final int magic = 0x43524C47;
+    private static final int version = 1;
+    private static final int fileHeaderBytes = 8;
+    private static final int recordHeaderBytes = 8;
+    // Fixed part of a record: finish time, won, level, turns,
+    // damage taken, duration and number of kill types.
+    private static final int fixedRecordBytes = 8 + 1 + 4 + 4 + 4 + 8 + 2;
+    // Caps simulated runs where the player wanders without finding
+    // the last monsters, or is boxed in with moves left over.
+    private static final int maxSimulatedActions = 20000;
+    private static final int readBufferBytes = 64 * 1024;
+
+    private final FileChannel channel;
+    private final RunIndex index = new RunIndex();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(256);
+    private long truncatedBytes;
+
+    private RunLog(FileChannel channel) {
+        this.channel = channel;
+    }
 
-    public Wight(int x, int y) {
-        super(3, 1, 2, x, y, SpriteGenerator.spriteList.get("wight"));
+    // Opens or creates the log and loads every intact record.
+    public static RunLog open(File logFile) throws IOException {
+        FileChannel channel = FileChannel.open(logFile.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        RunLog log = new RunLog(channel);
+        try {
+            if (!lock(channel))
+                throw new IOException("Run log is in use: " + logFile);
+            log.recover();
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return log;
     }
 
-    @Override
-    public void move(int x, int y) {
-        xPos = x;
-        yPos = y;
+    // Takes an exclusive lock on the whole file, held until it is
+    // closed. Fails if another process, or this one, holds it already.
+    private static boolean lock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock() != null;
+        }
+        catch (OverlappingFileLockException e) {
+            return false;
+        }
     }
 
-    @Override
-    public int attack() {
-        return getAttackPower();
+    // Writes the record to the end of the log and indexes it.
+    public synchronized void append(RunRecord record) throws IOException {
+        int payloadBytes = fixedRecordBytes + 4 * record.getNumberOfKillTypes();
+        if (writeBuffer.capacity() < recordHeaderBytes + payloadBytes)
+            writeBuffer = ByteBuffer.allocateDirect(recordHeaderBytes + payloadBytes);
+        writeBuffer.clear();
+        writeBuffer.position(recordHeaderBytes);
+        writeBuffer.putLong(record.getFinishedAt());
+        writeBuffer.put((byte) (record.isWon() ? 1 : 0));
+        writeBuffer.putInt(record.getLevel());
+        writeBuffer.putInt(record.getTurns());
+        writeBuffer.putInt(record.getDamageTaken());
+        writeBuffer.putLong(record.getDurationMillis());
+        writeBuffer.putShort((short) record.getNumberOfKillTypes());
+        for (int type = 0; type < record.getNumberOfKillTypes(); type++)
+            writeBuffer.putInt(record.getKills(type));
+        writeBuffer.flip();
+        writeBuffer.position(recordHeaderBytes);
+        crc.reset();
+        crc.update(writeBuffer);
+        writeBuffer.putInt(0, payloadBytes);
+        writeBuffer.putInt(4, (int) crc.getValue());
+        writeBuffer.position(0);
+        while (writeBuffer.hasRemaining())
+            channel.write(writeBuffer);
+        index.add(record);
     }
-}
 
-/**
- * Monster: Grave Moth (corrupted insects)
- * Simple implementation with ONE health
- * and attack power of ONE.
- */
-class Moth extends GameCharacter {
+    // Flushes appended records to the disk itself.
+    public synchronized void force() throws IOException {
+        channel.force(false);
+    }
 
-    public Moth(int x, int y) {
-        super(1, 1, 1, x, y, SpriteGenerator.spriteList.get("moth"));
+    public RunIndex getIndex() {
+        return index;
     }
 
-    @Override
-    public void move(int x, int y) {
-        xPos = x;
-        yPos = y;
+    // Bytes of torn or corrupt records dropped when the log was opened.
+    public long getTruncatedBytes() {
+        return truncatedBytes;
     }
 
     @Override
-    public int attack() {
-        return getAttackPower();
+    public synchronized void close() throws IOException {
+        try {
+            force();
+        }
+        finally {
+            channel.close();
+        }
     }
-}
-
-/**
- * Class that loads the sprites from file and houses
- * them in a hash map for retrieval.
- */
-class SpriteGenerator {
-
-    public static Map<String, ImageIcon> spriteList = new HashMap<>();
-    private static String[] spriteLabels = new String[] {
-        "player",
-        "wight",
-        "moth"
-    };
-    private static boolean spritesLoaded = false;
 
-    // Loads the sprites into hash map if they
-    // haven't been loaded already.
-    public static void loadSprites() {
-        if (spritesLoaded)
+    private void recover() throws IOException {
+        long size = channel.size();
+        if (size < fileHeaderBytes) {
+            // New or torn before the header was written.
+            ByteBuffer header = ByteBuffer.allocate(fileHeaderBytes);
+            header.putInt(magic).putInt(version).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            channel.position(fileHeaderBytes);
+            truncatedBytes = size;
             return;
-        String spriteFile = "src/sprites/";
-        for (String label : spriteLabels) {
-            spriteList.put(label, new ImageIcon(spriteFile + label + ".png"));
         }
-        spritesLoaded = true;
+        // Read with plain channel reads rather than a mapping, since a
+        // file can't be truncated while it is mapped on some systems.
+        ByteBuffer data = ByteBuffer.allocate(readBufferBytes);
+        data.limit(0);
+        long readPosition = 0;
+        readPosition = fill(data, fileHeaderBytes, readPosition);
+        if (data.getInt() != magic || data.getInt() != version)
+            throw new IOException("Not a run log");
+        long intact = fileHeaderBytes;
+        while (true) {
+            readPosition = fill(data, recordHeaderBytes, readPosition);
+            if (data.remaining() < recordHeaderBytes)
+                break;
+            int payloadBytes = data.getInt(data.position());
+            int checksum = data.getInt(data.position() + 4);
+            if (payloadBytes < fixedRecordBytes || payloadBytes > size - intact - recordHeaderBytes)
+                break;
+            if (recordHeaderBytes + payloadBytes > data.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(recordHeaderBytes + payloadBytes);
+                larger.put(data).flip();
+                data = larger;
+            }
+            readPosition = fill(data, recordHeaderBytes + payloadBytes, readPosition);
+            if (data.remaining() < recordHeaderBytes + payloadBytes)
+                break;
+            data.position(data.position() + recordHeaderBytes);
+            ByteBuffer payload = data.duplicate();
+            payload.limit(data.position() + payloadBytes);
+            payload = payload.slice();
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum)
+                break;
+            index.add(readRecord(payload));
+            data.position(data.position() + payloadBytes);
+            intact += recordHeaderBytes + payloadBytes;
+        }
+        if (intact < size) {
+            truncatedBytes = size - intact;
+            channel.truncate(intact);
+        }
+        channel.position(intact);
     }
 
-    public static ImageIcon getSprite(String sprite) {
-        return spriteList.get(sprite);
+    // Reads from the file until the buffer has at least the given
+    // number of bytes left, or the file ends. Returns where the next
+    // read starts.
+    private long fill(ByteBuffer data, int needed, long readPosition) throws IOException {
+        if (data.remaining() >= needed)
+            return readPosition;
+        data.compact();
+        int read = 0;
+        while (data.position() < needed && read >= 0) {
+            read = channel.read(data, readPosition);
+            if (read > 0)
+                readPosition += read;
+        }
+        data.flip();
+        return readPosition;
+    }
+
+    private static RunRecord readRecord(ByteBuffer payload) {
+        long finishedAt = payload.getLong();
+        boolean won = payload.get() != 0;
+        int level = payload.getInt();
+        int turns = payload.getInt();
+        int damageTaken = payload.getInt();
+        long durationMillis = payload.getLong();
+        int[] kills = new int[payload.getShort() & 0xFFFF];
+        for (int type = 0; type < kills.length; type++)
+            kills[type] = payload.getInt();
+        return new RunRecord(finishedAt, won, level, turns, damageTaken, durationMillis, kills);
     }
 
+    /*
+     Simulates runs headlessly with the same random player the frame
+     exporter uses, appends each to the log, then prints the
+     leaderboard and percentiles over everything in the log.
+     Usage: RunLog [logFile] [runs] [seed]
+    */
+    public static void main(String[] args) throws IOException {
+        File logFile = new File((args.length > 0) ? args[0] : defaultSimulatedLogFile);
+        int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 0;
+        long seed = (args.length > 2) ? Long.parseLong(args[2]) : System.nanoTime();
+        MonsterCatalog.loadCatalog();
+        SimulatedPlayer simulatedPlayer = new SimulatedPlayer(new Random(seed));
+        long openStart = System.nanoTime();
+        try (RunLog log = RunLog.open(logFile)) {
+            System.out.printf("Loaded %,d runs in %.1f ms (%,d bytes truncated)%n", log.getIndex().size(),
+                (System.nanoTime() - openStart) / 1e6, log.getTruncatedBytes());
+            long appendNanos = 0;
+            for (int run = 0; run < runs; run++) {
+                RunRecord record;
+                try (GameModel gameModel = new GameModel()) {
+                    gameModel.setHistoryMemory(0);
+                    GameEventConsumer events = gameModel.getEventBus().subscribe();
+                    RunTracker tracker = new RunTracker();
+                    boolean won = false;
+                    for (int action = 0; action < maxSimulatedActions && !gameModel.gameOver(); action++) {
+                        simulatedPlayer.act(gameModel);
+                        if (gameModel.levelWon() && gameModel.getCurrentLevel() == GameModel.maxLevel) {
+                            won = true;
+                            break;
+                        }
+                        if (gameModel.playerTurnOver()) {
+                            gameModel.monsterTurn();
+                            gameModel.resetPlayerTurn();
+                        }
+                        events.poll(tracker);
+                    }
+                    events.poll(tracker);
+                    record = tracker.finish(gameModel, won);
+                }
+                long start = System.nanoTime();
+                log.append(record);
+                appendNanos += System.nanoTime() - start;
+            }
+            if (runs > 0) {
+                System.out.printf("Appended %,d runs, %.2f us per append%n", runs, appendNanos / 1e3 / runs);
+                System.out.printf("Repeated positions: %.1f%% of actions%n",
+                    simulatedPlayer.getTriedTiles().getHitRate() * 100);
+            }
+
+            RunIndex index = log.getIndex();
+            System.out.printf("%,d runs, %,d won%n", index.size(), index.getWins());
+            for (RunRecord record : index.leaderboard(10))
+                System.out.println("  " + record);
+            for (RunMetric metric : RunMetric.values()) {
+                System.out.printf("%-16s p50 %d  p90 %d  p99 %d%n", metric,
+                    index.percentile(metric, 50), index.percentile(metric, 90), index.percentile(metric, 99));
+            }
+        }
+    }
 }
 
 /**
- * Class that loads and houses the images of the game that
- * are not character sprites.
+ * Writes finished runs to the run log on a background thread, so the
+ * EDT never waits on the log being opened, replayed or written.
+ * One writer, and so one open log, is shared by the whole session. It
+ * is opened when first asked for and closed when the game exits.
+ * The chelon.runlog system property points it somewhere other than
+ * runs.log.
  */
-class ImageLoader {
+class RunLogWriter {
 
-    private static String screenFile = "src/screen_images/";
-    public static String frameIconImage = screenFile + "frame_icon.png";
-    public static String titleScreenImage = screenFile + "title_screen.png";
-    public static String instructionScreenImage = screenFile + "instructions.png";
-    public static String gameScreenImage = screenFile + "game_screen.png";
-    public static String gameOverScreenImage = screenFile + "game_over.png";
-    public static String gameWinScreenOneImage = screenFile + "win_screen_one.png";
-    public static String gameWinScreenTwoImage = screenFile + "win_screen_two.png";
-    private static ArrayList<String> heartValues =
-        new ArrayList<>(Arrays.asList(
-            "one", "two", "three", "four", "five", "six", "seven", "eight", "nine", "ten"));
+    private static RunLogWriter session;
 
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "run-log");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Future<RunLog> log;
 
-    public static ImageIcon getPlayerHeartsIcon(int health) {
-        return new ImageIcon(screenFile + heartValues.get(health - 1) + "_hearts.png");
+    private RunLogWriter(File logFile) {
+        log = writer.submit(() -> RunLog.open(logFile));
     }
 
-    // Returns the image from file in the form of a JLabel
-    public static JLabel imageToAdd(String filepath) {
-        try {
-            BufferedImage image = ImageIO.read(new File(filepath));
-            return new JLabel(new ImageIcon(image));
-        }
-        catch (IOException e) {
-            e.printStackTrace();
+    public static synchronized RunLogWriter forSession() {
+        if (session == null) {
+            session = new RunLogWriter(new File(System.getProperty("chelon.runlog", RunLog.defaultLogFile)));
+            Runtime.getRuntime().addShutdownHook(new Thread(session::close, "run-log-close"));
         }
-        return new JLabel();
+        return session;
     }
 
-    // Returns image as a buffered image
-    public static BufferedImage getImageAsBuffered(String filepath) {
+    // Queues the run to be appended. If the log couldn't be opened,
+    // the run is dropped and the reason printed.
+    public void append(RunRecord record) {
+        writer.execute(() -> {
+            try {
+                log.get().append(record);
+            }
+            catch (ExecutionException | IOException e) {
+                e.printStackTrace();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    // Writes out whatever is queued, then syncs and closes the log.
+    public void close() {
+        writer.execute(() -> {
+            try {
+                log.get().close();
+            }
+            catch (ExecutionException | IOException e) {
+                // Already reported when the log failed to open.
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        writer.shutdown();
         try {
-            return ImageIO.read(new File(filepath));
+            writer.awaitTermination(5, TimeUnit.SECONDS);
         }
-        catch(IOException e) {
-            e.printStackTrace();
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        return null;
     }
-
 }
 
 /**
- * Class that handles the loading and initialization of
- * sound clips used in the game.
+ * Load harness for the game screen. Fires synthetic tile clicks into
+ * the controller's tile listener at a fixed rate and measures how long
+ * each takes to show up on screen, then prints a latency histogram.
+ *
+ * Each click is scheduled for a fixed time and its latency is taken
+ * from that time, so a stalled EDT counts against every click that
+ * queued up behind it. The click is handled on the EDT the same way
+ * a real one is. Repaints requested while handling it are processed
+ * by the RepaintManager in an event queued ahead of the probe posted
+ * afterwards, so the probe runs once the new frame is painted and
+ * then syncs with the display.
+ *
+ * Needs a display. For automated runs, use a virtual X server:
+ *   xvfb-run -a java -cp out InputLatencyHarness 2000 30 50
+ * Usage: InputLatencyHarness [clicks] [clicksPerSecond] [p99LimitMs] [seed]
+ * Exits with status 1 if the p99 latency is over the limit.
  */
-class SoundSystem {
+class InputLatencyHarness {
 
-    private static String soundFile = "src/sounds/";
-    private static File playerHitFile = new File(soundFile + "player_hit.wav");
-    private static File enemyHitFile = new File(soundFile + "enemy_hit.wav");
-    private static File necroLaughFile = new File(soundFile + "necro_laugh.wav");
-    private static File introFile = new File(soundFile + "intro.wav");
-    private static File gameThemeFile = new File(soundFile + "game_theme.wav");
-    private static File gameWinFile = new File(soundFile + "game_win.wav");
-    private static Clip playerHit, enemyHit, necroLaugh, intro, gameTheme, gameWin;
+    private static final int defaultClicks = 1000;
+    private static final int defaultClicksPerSecond = 30;
+
+    private final Random random;
+    private final long[] handledNanos;
+    private final long[] visibleNanos;
+    private final CountDownLatch finished;
+    private GameModel gameModel;
+    private GameView gameView;
+    private int games;
 
-    // Methods to return the clips that are generated by the makeClip method.
-    public static Clip getPlayerHit() {
-        return makeSoundEffect(playerHitFile, playerHit);
+    public InputLatencyHarness(int clicks, long seed) {
+        random = new Random(seed);
+        handledNanos = new long[clicks];
+        visibleNanos = new long[clicks];
+        finished = new CountDownLatch(clicks);
     }
 
-    public static Clip getEnemyHit() {
-        return makeSoundEffect(enemyHitFile, enemyHit);
+    // Fires every click at its scheduled time and waits for the last
+    // one to be visible.
+    public void run(int clicksPerSecond) throws InterruptedException, InvocationTargetException {
+        EventQueue.invokeAndWait(this::newGame);
+        long interval = 1_000_000_000L / clicksPerSecond;
+        long start = System.nanoTime() + interval;
+        for (int i = 0; i < handledNanos.length; i++) {
+            long scheduled = start + i * interval;
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+            int click = i;
+            EventQueue.invokeLater(() -> click(click, scheduled));
+        }
+        finished.await();
+        EventQueue.invokeAndWait(() -> {
+            gameView.getGameWindow().dispose();
+            gameModel.close();
+        });
     }
 
-    public static Clip getNecroLaugh() {
-        return makeClip(necroLaughFile, necroLaugh);
+    // Runs on the EDT. Clicks a tile next to the player through the
+    // tile's own listeners, then posts the probe that sees it painted.
+    private void click(int click, long scheduled) {
+        if (gameModel.gameOver() || (gameModel.getCurrentLevel() == GameModel.maxLevel && gameModel.levelWon())) {
+            gameView.getGameWindow().dispose();
+            gameModel.close();
+            newGame();
+        }
+        Player player = gameModel.getPlayer();
+        int x = Math.max(0, Math.min(GameBoard.boardSide - 1, player.getXPos() + random.nextInt(3) - 1));
+        int y = Math.max(0, Math.min(GameBoard.boardSide - 1, player.getYPos() + random.nextInt(3) - 1));
+        JButton tile = gameView.getGameTile(x, y);
+        ActionEvent event = new ActionEvent(tile, ActionEvent.ACTION_PERFORMED, tile.getActionCommand());
+        for (ActionListener listener : tile.getActionListeners())
+            listener.actionPerformed(event);
+        handledNanos[click] = System.nanoTime() - scheduled;
+        EventQueue.invokeLater(() -> {
+            Toolkit.getDefaultToolkit().sync();
+            visibleNanos[click] = System.nanoTime() - scheduled;
+            finished.countDown();
+        });
     }
 
-    public static Clip getIntro() {
-        return makeClip(introFile, intro);
+    // Starts a game and goes through the title and instruction
+    // screens to the board, as a player would.
+    private void newGame() {
+        gameModel = new GameModel();
+        gameView = new GameView(gameModel);
+        new GameController(gameView, gameModel);
+        gameView.getGameWindow().setVisible(true);
+        gameView.getGameWindow().getButtonScreen().doClick(0);
+        gameView.getGameWindow().getButtonScreen().doClick(0);
+        games++;
     }
 
-    public static Clip getGameTheme() {
-        return makeClip(gameThemeFile, gameTheme);
+    public int getGames() {
+        return games;
     }
 
-    public static Clip getGameWin() {
-        return makeClip(gameWinFile, gameWin);
+    // Nearest-rank percentile, in milliseconds.
+    public static double percentile(long[] samples, double percent) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
     }
 
-    // Opens an audio input stream, audio input file, and creates the clip
-    // object with the connection to the stream.
-    private static Clip makeClip(File audioFile, Clip clip) {
-        try {
-            AudioInputStream input = AudioSystem.getAudioInputStream(audioFile);
-            clip = AudioSystem.getClip();
-            clip.open(input);
+    // Prints counts in power-of-two millisecond buckets, starting
+    // with everything under a quarter of a millisecond.
+    public static void printHistogram(String title, long[] samples) {
+        int[] buckets = new int[16];
+        for (long sample : samples) {
+            long quarterMillis = sample / 250_000;
+            int bucket = (quarterMillis == 0) ? 0 : 64 - Long.numberOfLeadingZeros(quarterMillis);
+            buckets[Math.min(bucket, buckets.length - 1)]++;
         }
-        catch (UnsupportedAudioFileException | IOException | LineUnavailableException e) {
-            e.printStackTrace();
+        int largest = Arrays.stream(buckets).max().orElse(1);
+        System.out.printf("%s: p50 %.2f  p90 %.2f  p99 %.2f  max %.2f ms%n", title,
+            percentile(samples, 50), percentile(samples, 90), percentile(samples, 99), percentile(samples, 100));
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            if (buckets[bucket] == 0)
+                continue;
+            double upper = 0.25 * (1L << bucket);
+            String label = (bucket == buckets.length - 1) ? String.format(">= %.2f", upper / 2) : String.format("< %.2f", upper);
+            System.out.printf("  %10s ms %7d %s%n", label, buckets[bucket],
+                "#".repeat((int) Math.ceil(50.0 * buckets[bucket] / largest)));
         }
-        return clip;
     }
 
-    // Same as above, but this method is used for the sound effects.
-    // It uses a different audio stream so that the sound effects can play while the
-    // clip using the separate stream is playing.
-    private static Clip makeSoundEffect(File audioFile, Clip clip) {
-        try {
-            AudioInputStream effectInput = AudioSystem.getAudioInputStream(audioFile);
-            clip = AudioSystem.getClip();
-            clip.open(effectInput);
+    public static void main(String[] args) throws InterruptedException, InvocationTargetException, IOException {
+        if (GraphicsEnvironment.isHeadless()) {
+            System.out.println("No display. Run under a virtual X server, e.g. xvfb-run -a java InputLatencyHarness");
+            System.exit(2);
         }
-        catch (UnsupportedAudioFileException | IOException | LineUnavailableException e) {
-            e.printStackTrace();
+        int clicks = (args.length > 0) ? Integer.parseInt(args[0]) : defaultClicks;
+        int clicksPerSecond = (args.length > 1) ? Integer.parseInt(args[1]) : defaultClicksPerSecond;
+        double p99LimitMillis = (args.length > 2) ? Double.parseDouble(args[2]) : Double.MAX_VALUE;
+        long seed = (args.length > 3) ? Long.parseLong(args[3]) : System.nanoTime();
+        // Keeps the harness's games out of the player's run log.
+        if (System.getProperty("chelon.runlog") == null) {
+            File runLog = File.createTempFile("harness-runs", ".log");
+            runLog.deleteOnExit();
+            System.setProperty("chelon.runlog", runLog.getPath());
         }
-        return clip;
+        SpriteGenerator.loadSprites();
+        MonsterCatalog.loadCatalog();
+
+        InputLatencyHarness harness = new InputLatencyHarness(clicks, seed);
+        harness.run(clicksPerSecond);
+        System.out.printf("%d clicks at %d/s over %d games%n", clicks, clicksPerSecond, harness.getGames());
+        printHistogram("Handled", harness.handledNanos);
+        printHistogram("Visible", harness.visibleNanos);
+        double p99 = percentile(harness.visibleNanos, 99);
+        if (p99 > p99LimitMillis) {
+            System.out.printf("FAIL: p99 %.2f ms is over the %.2f ms limit%n", p99, p99LimitMillis);
+            System.exit(1);
+        }
+        System.exit(0);
     }
-
-}
\ No newline at end of file
+}